@@ -0,0 +1,122 @@
+package com.ambrella;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+
+import static com.ambrella.Log.log;
+
+// A copy of the input store file used to fill in its lost blocks, on another cluster, another
+// filesystem URI or the local disk. A lost block is taken from the copy only if the copy's
+// index has a block with the same first key and size, and the data read from there starts with
+// the data block magic and that key, so blocks of a different store file are never spliced in.
+// Only the matching blocks are read, with positional reads, which are safe from several threads.
+public class BackupSource {
+
+    private final Path path;
+    private final FSDataInputStream stream;
+    private final Utils.Index index;
+    private final KeyValue.KeyComparator comparator = new KeyValue.KeyComparator();
+
+    private BackupSource(Path path, FSDataInputStream stream, Utils.Index index) {
+        this.path = path;
+        this.stream = stream;
+        this.index = index;
+    }
+
+    static BackupSource open(Configuration conf, Path path) throws IOException {
+        FileSystem fs = path.getFileSystem(conf);
+
+        long phaseStart = System.nanoTime();
+        Utils.Index index = HFileTail.read(fs, path).dataIndex;
+        Metrics.histogram("phase.backup.index").updateSince(phaseStart);
+
+        log("backup", path, "has", index.getLength(), "data blocks");
+
+        return new BackupSource(path, fs.open(path), index);
+    }
+
+    // Reads the block with this first key and size into data[position..], returns false if the
+    // backup has no such block or it can not be read
+    boolean readBlock(byte[] key, int size, byte[] data, int position) {
+        if (!readBlock(key, size, 0, size, data, position)) {
+            return false;
+        }
+        logSpliced(key, size);
+        return true;
+    }
+
+    // Reads length bytes from offsetInBlock of the block with this first key and size into
+    // data[position..], so large blocks can be copied a chunk at a time. A read from the start
+    // of the block must hold its header and key, they are checked. Returns false if the backup
+    // has no such block or the range can not be read.
+    boolean readBlock(byte[] key, int size, long offsetInBlock, int length, byte[] data, int position) {
+        int block = find(key, size);
+        if (block < 0) {
+            Metrics.counter("backup.unmatched").inc();
+            log("no matching block in backup for key=" + KeyValue.keyToString(key) + ", size=" + size);
+            return false;
+        }
+
+        long offset = index.getOffset(block) + offsetInBlock;
+        try {
+            long readStart = System.nanoTime();
+            stream.readFully(offset, data, position, length);
+            Metrics.histogram("phase.backup.read").updateSince(readStart);
+        } catch (IOException e) {
+            Log.warn("failed to read", length, "bytes at offset", offset, "from backup", path + ":", e.getMessage());
+            return false;
+        }
+
+        if (offsetInBlock == 0 && !matchesHeader(key, data, position, length)) {
+            Log.warn("block at offset", offset, "of backup", path, "does not start with key", KeyValue.keyToString(key));
+            return false;
+        }
+
+        Metrics.counter("bytes.backup").add(length);
+        return true;
+    }
+
+    // Counts and logs a block that was taken from the backup
+    void logSpliced(byte[] key, int size) {
+        Metrics.counter("blocks.spliced").inc();
+        log("spliced block from backup: key=" + KeyValue.keyToString(key) + ", size=" + size);
+    }
+
+    // Index of the backup block with this first key and size, -1 if there is none
+    private int find(byte[] key, int size) {
+        int low = 0;
+        int high = (int) index.getLength() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int order = comparator.compare(index.getKey(middle), key);
+            if (order < 0) {
+                low = middle + 1;
+            } else if (order > 0) {
+                high = middle - 1;
+            } else {
+                return index.getSize(middle) == size ? middle : -1;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean matchesHeader(byte[] key, byte[] data, int position, int length) {
+        if (length < DataRewrite.BLOCK_HEADER_SIZE + key.length) {
+            return false;
+        }
+        return Bytes.compareTo(data, position, C.DATABLOCKMAGIC.length, C.DATABLOCKMAGIC, 0, C.DATABLOCKMAGIC.length) == 0
+                && Bytes.toInt(data, position + C.DATABLOCKMAGIC.length) == key.length
+                && Bytes.compareTo(data, position + DataRewrite.BLOCK_HEADER_SIZE, key.length, key, 0, key.length) == 0;
+    }
+
+    void close() throws IOException {
+        stream.close();
+    }
+
+}
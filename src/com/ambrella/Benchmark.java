@@ -0,0 +1,356 @@
+package com.ambrella;
+
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.TreeRangeSet;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.io.hfile.HFile;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static com.ambrella.Log.log;
+import static com.ambrella.Utils.exit;
+import static com.ambrella.Utils.formatFileSize;
+
+// Micro benchmarks of the parsing and salvage hot paths over synthetic HFile v1 files on the
+// local file system. Every combination of the given block sizes, cell sizes and corruption
+// ratios gets its own file, every case runs WARMUP iterations and then ITERATIONS measured ones.
+//
+// Corruption can not be produced on the local file system, so the ratio selects data blocks that
+// are treated as missing by the range lookup and copy loop cases, the same way DataRewrite treats
+// blocks reported as missing by the namenode.
+public class Benchmark {
+
+    static final int WARMUP = 3;
+
+    static class Params {
+        final int blockSize;
+        final int cellSize;
+        final double corruptionRatio;
+
+        Params(int blockSize, int cellSize, double corruptionRatio) {
+            this.blockSize = blockSize;
+            this.cellSize = cellSize;
+            this.corruptionRatio = corruptionRatio;
+        }
+
+        @Override
+        public String toString() {
+            return "block=" + formatFileSize(blockSize) + " cell=" + formatFileSize(cellSize) + " corruption=" + corruptionRatio;
+        }
+    }
+
+    // One benchmarked operation, run() returns the number of processed bytes
+    static abstract class Case {
+        final String name;
+
+        Case(String name) {
+            this.name = name;
+        }
+
+        abstract long run() throws IOException;
+    }
+
+    // results are added here so the JIT can not drop the measured work
+    static long sink = 0;
+
+    private static int[] parseInts(String value) {
+        String[] parts = value.split(",");
+        int[] result = new int[parts.length];
+        for (int i = 0; i < parts.length; ++i) {
+            result[i] = Integer.parseInt(parts[i]);
+        }
+        return result;
+    }
+
+    private static double[] parseDoubles(String value) {
+        String[] parts = value.split(",");
+        double[] result = new double[parts.length];
+        for (int i = 0; i < parts.length; ++i) {
+            result[i] = Double.parseDouble(parts[i]);
+        }
+        return result;
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        int[] blockSizes = {HFile.DEFAULT_BLOCKSIZE};
+        int[] cellSizes = {1024, 64 * 1024};
+        double[] corruptionRatios = {0, 0.1};
+        long fileSize = 64L * 1024 * 1024;
+        int iterations = 10;
+        File dir = new File(System.getProperty("java.io.tmpdir"), "hbaserecovery-benchmark");
+
+        boolean argsValid = true;
+        try {
+            for (int i = 0; i < args.length && argsValid; i += 2) {
+                if (i + 1 >= args.length) {
+                    argsValid = false;
+                } else if (args[i].equals("-b")) {
+                    blockSizes = parseInts(args[i + 1]);
+                } else if (args[i].equals("-c")) {
+                    cellSizes = parseInts(args[i + 1]);
+                } else if (args[i].equals("-r")) {
+                    corruptionRatios = parseDoubles(args[i + 1]);
+                } else if (args[i].equals("-s")) {
+                    fileSize = Long.parseLong(args[i + 1]);
+                } else if (args[i].equals("-i")) {
+                    iterations = Integer.parseInt(args[i + 1]);
+                } else if (args[i].equals("-d")) {
+                    dir = new File(args[i + 1]);
+                } else {
+                    argsValid = false;
+                }
+            }
+        } catch (NumberFormatException e) {
+            argsValid = false;
+        }
+
+        if (!argsValid) {
+            Log.includeTimestamp = false;
+            log("args: [-b BLOCK_SIZES] [-c CELL_SIZES] [-r CORRUPTION_RATIOS] [-s FILE_SIZE] [-i ITERATIONS] [-d DIR]");
+            log("Runs the benchmarks for every combination of comma separated parameter values.");
+            log("Options:");
+            log("\t -b \t HFile block sizes in bytes (default " + HFile.DEFAULT_BLOCKSIZE + ")");
+            log("\t -c \t cell value sizes in bytes (default 1024,65536)");
+            log("\t -r \t fraction of data blocks treated as missing (default 0,0.1)");
+            log("\t -s \t approximate size of every generated file in bytes (default 64 MB)");
+            log("\t -i \t measured iterations of every case (default 10)");
+            log("\t -d \t local directory for generated files (default java.io.tmpdir)");
+            exit(1);
+        }
+
+        Configuration conf = new Configuration();
+        FileSystem fs = FileSystem.getLocal(conf);
+
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.error("failed to create benchmark directory:", dir);
+            exit(1);
+        }
+
+        for (int blockSize : blockSizes) {
+            for (int cellSize : cellSizes) {
+                for (double corruptionRatio : corruptionRatios) {
+                    Params params = new Params(blockSize, cellSize, corruptionRatio);
+                    // the name holds every generator parameter, the seed is the cell size, so a
+                    // file is only reused for the same parameters
+                    int cells = (int) Math.max(1, fileSize / cellSize);
+                    Path file = fs.makeQualified(new Path(dir.getAbsolutePath(), "bench-" + blockSize + "-" + cellSize + "-" + cells + ".hfile"));
+
+                    if (!fs.exists(file)) {
+                        SyntheticHFileGenerator.writeStoreFile(fs, file, blockSize, cellSize, cells, cellSize);
+                    }
+
+                    log("---", params, "file:", file, formatFileSize(fs.getFileStatus(file).getLen()));
+
+                    for (Case benchmarkCase : makeCases(conf, fs, file, params)) {
+                        measure(benchmarkCase, iterations);
+                    }
+                }
+            }
+        }
+
+        log("done, sink:", sink);
+        exit(0);
+    }
+
+    static IntervalSet makeMissingRanges(Utils.Index index, double corruptionRatio) {
+        IntervalSet missingRanges = new IntervalSet();
+        Random random = new Random(42);
+        for (int i = 0; i < index.getLength(); ++i) {
+            if (random.nextDouble() < corruptionRatio) {
+                missingRanges.add(index.getOffset(i), index.getOffset(i) + index.getSize(i));
+            }
+        }
+        return missingRanges;
+    }
+
+    static List<Case> makeCases(final Configuration conf, final FileSystem fs, final Path file, Params params) throws IOException {
+
+        final Utils.Index index = Utils.readHFileIndex(conf, file);
+        final IntervalSet missingRanges = makeMissingRanges(index, params.corruptionRatio);
+
+        // the structure used before IntervalSet, as a baseline
+        final RangeSet<Long> missingRangeSet = TreeRangeSet.create();
+        for (int i = 0; i < missingRanges.size(); ++i) {
+            missingRangeSet.add(Range.closedOpen(missingRanges.getStart(i), missingRanges.getEnd(i)));
+        }
+        final int blockCount = (int) index.getLength();
+
+        final List<HFileDataBlock> blocks = new ArrayList<HFileDataBlock>(blockCount);
+        FSDataInputStream stream = fs.open(file);
+        try {
+            for (int i = 0; i < blockCount; ++i) {
+                blocks.add(HFileDataBlock.read(stream, index.getOffset(i), (int) index.getSize(i)));
+            }
+        } finally {
+            stream.close();
+        }
+
+        final long dataSize = index.getOffset(blockCount - 1) + index.getSize(blockCount - 1);
+        final Path output = new Path(file.getParent(), file.getName() + ".out");
+
+        List<Case> cases = new ArrayList<Case>();
+
+        cases.add(new Case("HFileDataBlockRecord.splitRecords") {
+            long run() throws IOException {
+                for (HFileDataBlock block : blocks) {
+                    sink += HFileDataBlockRecord.splitRecords(block).size();
+                }
+                return dataSize;
+            }
+        });
+
+        cases.add(new Case("HFileDataBlock.RecordCursor") {
+            long run() throws IOException {
+                for (HFileDataBlock block : blocks) {
+                    HFileDataBlock.RecordCursor cursor = block.cursor();
+                    while (cursor.next()) {
+                        sink += cursor.getValueLength();
+                    }
+                }
+                return dataSize;
+            }
+        });
+
+        cases.add(new Case("HFileDataBlock.read") {
+            long run() throws IOException {
+                FSDataInputStream stream = fs.open(file);
+                try {
+                    for (int i = 0; i < blockCount; ++i) {
+                        sink += HFileDataBlock.read(stream, index.getOffset(i), (int) index.getSize(i)).data.length;
+                    }
+                } finally {
+                    stream.close();
+                }
+                return dataSize;
+            }
+        });
+
+        cases.add(new Case("HFileTail.read") {
+            long run() throws IOException {
+                sink += HFileTail.read(fs, file).dataIndex.getLength();
+                return fs.getFileStatus(file).getLen() - dataSize;
+            }
+        });
+
+        cases.add(new Case("Utils.readHFileIndex") {
+            long run() throws IOException {
+                sink += Utils.readHFileIndex(conf, file).getLength();
+                return fs.getFileStatus(file).getLen() - dataSize;
+            }
+        });
+
+        cases.add(new Case("TreeRangeSet lookup") {
+            long run() {
+                for (int i = 0; i < blockCount; ++i) {
+                    long offset = index.getOffset(i);
+                    if (missingRangeSet.subRangeSet(Range.closedOpen(offset, offset + index.getSize(i))).isEmpty()) {
+                        sink += 1;
+                    }
+                }
+                return dataSize;
+            }
+        });
+
+        cases.add(new Case("IntervalSet lookup") {
+            long run() {
+                for (int i = 0; i < blockCount; ++i) {
+                    long offset = index.getOffset(i);
+                    if (!missingRanges.intersects(offset, offset + index.getSize(i))) {
+                        sink += 1;
+                    }
+                }
+                return dataSize;
+            }
+        });
+
+        cases.add(new Case("IntervalSet.Cursor lookup") {
+            long run() {
+                IntervalSet.Cursor missing = missingRanges.cursor();
+                for (int i = 0; i < blockCount; ++i) {
+                    long offset = index.getOffset(i);
+                    if (!missing.intersects(offset, offset + index.getSize(i))) {
+                        sink += 1;
+                    }
+                }
+                return dataSize;
+            }
+        });
+
+        cases.add(new Case("FileExtraction.keyFileName") {
+            long run() {
+                for (int i = 0; i < blockCount; ++i) {
+                    sink += FileExtraction.keyFileName(index.getKey(i)).length();
+                }
+                return dataSize;
+            }
+        });
+
+        cases.add(new Case("FileExtraction.findFirstBlockOfRow") {
+            final KeyValue.KeyComparator comparator = new KeyValue.KeyComparator();
+
+            long run() {
+                for (int i = 0; i < blockCount; ++i) {
+                    sink += FileExtraction.findFirstBlockOfRow(index, Bytes.toBytesBinary(FileExtraction.keyFileName(index.getKey(i))), comparator);
+                }
+                return dataSize;
+            }
+        });
+
+        cases.add(new Case("DataRewrite copy loop") {
+            long run() throws IOException {
+                FSDataInputStream input = fs.open(file);
+                FSDataOutputStream out = fs.create(output, true);
+                try {
+                    // a copy of the ranges, blocks that fail to read are added to them
+                    IntervalSet missing = new IntervalSet();
+                    for (int i = 0; i < missingRanges.size(); ++i) {
+                        missing.add(missingRanges.getStart(i), missingRanges.getEnd(i));
+                    }
+                    DataRewrite.copyBlocks(fs, file, input, input, out, index, missing, dataSize, 0, 0, MissingLog.inMemory(), null, null);
+                    return out.getPos();
+                } finally {
+                    input.close();
+                    out.close();
+                }
+            }
+        });
+
+        return cases;
+    }
+
+    static void measure(Case benchmarkCase, int iterations) throws IOException {
+        for (int i = 0; i < WARMUP; ++i) {
+            benchmarkCase.run();
+        }
+
+        long total = 0;
+        long best = Long.MAX_VALUE;
+        long bytes = 0;
+
+        for (int i = 0; i < iterations; ++i) {
+            long start = System.nanoTime();
+            bytes = benchmarkCase.run();
+            long time = System.nanoTime() - start;
+            total += time;
+            best = Math.min(best, time);
+        }
+
+        double meanMs = total / 1e6 / iterations;
+        double throughput = bytes / (total / 1e9 / iterations);
+
+        log(String.format("%-40s mean %10.3f ms  best %10.3f ms  %s/s", benchmarkCase.name, meanMs, best / 1e6, formatFileSize((long) throughput)));
+    }
+
+}
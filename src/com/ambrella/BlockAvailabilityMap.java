@@ -0,0 +1,96 @@
+package com.ambrella;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSClient;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.hdfs.protocol.ClientProtocol;
+import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
+import org.apache.hadoop.hdfs.protocol.LocatedBlock;
+import org.apache.hadoop.hdfs.protocol.LocatedBlocks;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+
+// Byte ranges of a file that can not be read, built once from the namenode block locations.
+// HDFS blocks marked as corrupt or without any replica location are treated as missing, so the
+// tools can skip them without waiting for DFSClient read retries to time out.
+public class BlockAvailabilityMap {
+
+    private static ClientProtocol namenode = null;
+
+    private final IntervalSet missingRanges = new IntervalSet();
+    private final List<LocatedBlock> missingBlocks = new LinkedList<LocatedBlock>();
+
+    private BlockAvailabilityMap() {
+    }
+
+    static synchronized ClientProtocol getNamenode(Configuration conf) throws IOException {
+        if (namenode == null) {
+            namenode = DFSClient.createNamenode(conf);
+        }
+        return namenode;
+    }
+
+    public static BlockAvailabilityMap build(Configuration conf, FileSystem fs, Path file) throws IOException {
+
+        BlockAvailabilityMap map = new BlockAvailabilityMap();
+
+        FileStatus status = fs.getFileStatus(file);
+
+        if (fs instanceof DistributedFileSystem) {
+
+            long rpcStart = System.nanoTime();
+            LocatedBlocks locatedBlocks = getNamenode(conf).getBlockLocations(file.toUri().getPath(), 0, status.getLen());
+            Metrics.histogram("namenode.getBlockLocations").updateSince(rpcStart);
+
+            for (LocatedBlock block : locatedBlocks.getLocatedBlocks()) {
+                DatanodeInfo[] locs = block.getLocations();
+
+                if (block.isCorrupt() || locs.length == 0) {
+                    map.missingBlocks.add(block);
+                    map.addMissingRange(block.getStartOffset(), block.getBlockSize());
+                }
+            }
+
+        } else {
+
+            // other file systems do not expose corrupt replicas, only blocks without hosts
+            for (BlockLocation loc : fs.getFileBlockLocations(status, 0, status.getLen())) {
+                if (loc.getHosts().length == 0) {
+                    map.addMissingRange(loc.getOffset(), loc.getLength());
+                }
+            }
+
+        }
+
+        return map;
+    }
+
+    private void addMissingRange(long offset, long length) {
+        missingRanges.add(offset, offset + length);
+    }
+
+    // True if no missing range overlaps the bytes [start, end)
+    public boolean isAvailable(long start, long end) {
+        return !missingRanges.intersects(start, end);
+    }
+
+    public boolean hasMissingRanges() {
+        return !missingRanges.isEmpty();
+    }
+
+    public IntervalSet getMissingRanges() {
+        return new IntervalSet(missingRanges);
+    }
+
+    // Only filled for HDFS files
+    public List<LocatedBlock> getMissingBlocks() {
+        return missingBlocks;
+    }
+
+}
@@ -1,8 +1,5 @@
 package com.ambrella;
 
-import com.google.common.collect.Range;
-import com.google.common.collect.RangeSet;
-import com.google.common.collect.TreeRangeSet;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.BlockLocation;
 import org.apache.hadoop.fs.FSDataInputStream;
@@ -33,8 +30,7 @@ public class BlocksFirstKeyReader {
         try {
             readKeys(conf, file);
         } catch (Exception e) {
-            log("UNEXPECTED EXCEPTION:");
-            e.printStackTrace();
+            Log.error("UNEXPECTED EXCEPTION:", e);
             System.exit(2);
         }
 
@@ -48,16 +44,16 @@ public class BlocksFirstKeyReader {
 
         Utils.Index index = readHFileIndex(conf, file);
 
-        RangeSet<Long> missingRanges = TreeRangeSet.create();
+        IntervalSet missingRanges = BlockAvailabilityMap.build(conf, fs, file).getMissingRanges();
+        IntervalSet.Cursor missing = missingRanges.cursor();
 
         for (int i = 0; i < index.getLength(); i++) {
 
             long offset = index.getOffset(i);
             long blockSize = index.getSize(i);
 
-            Range<Long> range = Range.<Long>closed(offset, offset + blockSize);
-            if (!missingRanges.subRangeSet(range).isEmpty()) {
-                log("skipping input block in non-readable range:", range);
+            if (missing.intersects(offset, offset + blockSize)) {
+                log("skipping input block in non-readable range:", IntervalSet.toString(offset, offset + blockSize));
                 continue;
             }
 
@@ -68,8 +64,7 @@ public class BlocksFirstKeyReader {
             } catch (IOException e) {
                 BlockLocation[] locations = fs.getFileBlockLocations(fs.getFileStatus(file), offset, offset + blockSize);
                 for (BlockLocation loc : locations) {
-                    Range<Long> locRange = Range.closed(loc.getOffset(), loc.getOffset() + loc.getLength());
-                    missingRanges.add(locRange);
+                    missingRanges.add(loc.getOffset(), loc.getOffset() + loc.getLength());
                 }
                 continue;
             }
@@ -86,7 +81,7 @@ public class BlocksFirstKeyReader {
         byte[] magic = new byte[C.DATABLOCKMAGIC.length];
         stream.readFully(magic);
         if (!Arrays.equals(magic, C.DATABLOCKMAGIC)) {
-            log("ERROR: data block does not start with DATABLOCKMAGIC at offset=" + offset);
+            Log.error("data block does not start with DATABLOCKMAGIC at offset=" + offset);
             exit(2);
         }
         int keyLength = stream.readInt();
@@ -0,0 +1,49 @@
+package com.ambrella;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Reusable fixed-size chunks for streaming data blocks of any size with flat memory use.
+// A chunk taken with acquire() is given back with release() when the copy is done. At most
+// MAX_POOLED chunks are kept, callers beyond that allocate chunks that are dropped on release.
+public class BufferPool {
+
+    static final int CHUNK_SIZE = 1024 * 1024;
+
+    private static final int MAX_POOLED = 64;
+
+    // never written to, the data of lost blocks is written from it
+    private static final byte[] ZEROS = new byte[CHUNK_SIZE];
+
+    private static final ConcurrentLinkedQueue<byte[]> chunks = new ConcurrentLinkedQueue<byte[]>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+
+    static byte[] acquire() {
+        byte[] chunk = chunks.poll();
+        if (chunk == null) {
+            Metrics.counter("buffers.allocated").inc();
+            return new byte[CHUNK_SIZE];
+        }
+        pooled.decrementAndGet();
+        return chunk;
+    }
+
+    static void release(byte[] chunk) {
+        if (chunk.length == CHUNK_SIZE && pooled.incrementAndGet() <= MAX_POOLED) {
+            chunks.offer(chunk);
+        } else if (chunk.length == CHUNK_SIZE) {
+            pooled.decrementAndGet();
+        }
+    }
+
+    static void writeZeros(OutputStream out, long length) throws IOException {
+        while (length > 0) {
+            int chunk = (int) Math.min(length, ZEROS.length);
+            out.write(ZEROS, 0, chunk);
+            length -= chunk;
+        }
+    }
+
+}
@@ -0,0 +1,234 @@
+package com.ambrella;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static com.ambrella.Log.log;
+import static com.ambrella.Utils.formatFileSize;
+
+// Rewrites a store file like DataRewrite, but leaves lost blocks out instead of writing them
+// zero-filled, so the output is a smaller HFile with only the readable data. The data index is
+// rebuilt for the written blocks, the meta blocks are copied behind them with their index
+// shifted, and the file info and trailer get the last key, average key and value lengths,
+// entry count and byte count of what is left.
+//
+// Only for uncompressed files. Offsets in the output differ from the input, so this rewrite
+// does not checkpoint to a journal.
+public class CompactDataRewrite {
+
+    // Compression.Algorithm.NONE.ordinal() in HBase 0.90
+    static final int COMPRESSION_NONE = 2;
+
+    // Record statistics of the written blocks, for the file info and the trailer
+    static class Stats {
+        long entryCount = 0;
+        long keyLengths = 0;
+        long valueLengths = 0;
+        int lastKeyOffset = -1;
+        int lastKeyLength = 0;
+    }
+
+    // Takes lost blocks from backup if it is not null
+    static DataRewrite.Result rewrite(Configuration conf, FileSystem fs, Path file, Path output, MissingLog missingLog, BackupSource backup) throws IOException {
+
+        long phaseStart = System.nanoTime();
+        HFileTail tail = HFileTail.read(fs, file);
+        Metrics.histogram("phase.index.load").updateSince(phaseStart);
+
+        if (tail.trailer.compressionCodec != COMPRESSION_NONE) {
+            throw new IOException("compact output supports only uncompressed files, " + file + " uses compression codec " + tail.trailer.compressionCodec);
+        }
+
+        Utils.Index index = tail.dataIndex;
+        int count = (int) index.getLength();
+        if (count == 0) {
+            throw new IOException("no data blocks in " + file);
+        }
+
+        FileStatus status = fs.getFileStatus(file);
+        long totalSize = status.getLen();
+
+        log("Input file size:", formatFileSize(totalSize));
+
+        phaseStart = System.nanoTime();
+        IntervalSet missingRanges = BlockAvailabilityMap.build(conf, fs, file).getMissingRanges();
+        Metrics.histogram("phase.availability").updateSince(phaseStart);
+
+        log("Known missing ranges:", missingRanges);
+
+        FSDataInputStream inputStream = fs.open(file);
+        HedgedReader reader = HedgedReader.open(conf, fs, file, inputStream);
+        FSDataOutputStream outputStream = fs.create(output);
+
+        byte[][] keys = new byte[count][];
+        long[] offsets = new long[count];
+        int[] sizes = new int[count];
+        int written = 0;
+
+        int lostKeysCount = 0;
+        long lostBytes = 0;
+        byte[] lastKey = null;
+        Stats stats = new Stats();
+
+        byte[] data = new byte[DataRewrite.COPY_BUFFER_SIZE];
+
+        for (ParallelDataRewrite.Span span : ParallelDataRewrite.splitSpans(index, status.getBlockSize(), DataRewrite.COPY_BUFFER_SIZE)) {
+
+            if (data.length < span.length) {
+                data = new byte[(int) span.length];
+            }
+
+            boolean spanRead = ParallelDataRewrite.readSpanData(reader, span, data, missingRanges);
+            ParallelDataRewrite.SpanResult result = ParallelDataRewrite.frameSpan(fs, status, reader, index, span, data, spanRead, missingRanges, backup);
+            Set<Integer> lostBlocks = new HashSet<Integer>(result.lostBlocks);
+
+            for (int i = span.firstBlock; i < span.endBlock; ++i) {
+                int position = (int) (index.getOffset(i) - span.offset);
+                int size = (int) index.getSize(i);
+
+                if (lostBlocks.contains(i) || !scanRecords(data, position + C.DATABLOCKMAGIC.length, position + size, stats)) {
+                    DataRewrite.logLostKey(missingLog, index, i);
+                    lostKeysCount += 1;
+                    lostBytes += size;
+                    continue;
+                }
+
+                keys[written] = index.getKey(i);
+                offsets[written] = outputStream.getPos();
+                sizes[written] = size;
+                written += 1;
+
+                long writeStart = System.nanoTime();
+                outputStream.write(data, position, size);
+                Metrics.histogram("phase.write").updateSince(writeStart);
+                Metrics.counter("bytes.written").add(size);
+                Metrics.counter("blocks.salvaged").inc();
+
+                lastKey = Arrays.copyOfRange(data, stats.lastKeyOffset, stats.lastKeyOffset + stats.lastKeyLength);
+            }
+
+            DataRewrite.logProgress(span.offset + span.length, totalSize);
+        }
+
+        if (written == 0) {
+            Log.warn("no readable data blocks in", file + ", the output has only meta blocks");
+        }
+
+        // meta blocks are stored between the last data block and the file info
+        long dataEnd = index.getOffset(count - 1) + index.getSize(count - 1);
+        long metaStart = outputStream.getPos();
+        copyRange(reader, outputStream, dataEnd, tail.trailer.fileinfoOffset);
+
+        Utils.FileInfo fileInfo = tail.fileInfo;
+        if (lastKey != null) {
+            fileInfo.put(Utils.FileInfo.LASTKEY, lastKey);
+        } else {
+            fileInfo.remove(Utils.FileInfo.LASTKEY);
+        }
+        fileInfo.put(Utils.FileInfo.AVG_KEY_LEN, Bytes.toBytes(stats.entryCount == 0 ? 0 : (int) (stats.keyLengths / stats.entryCount)));
+        fileInfo.put(Utils.FileInfo.AVG_VALUE_LEN, Bytes.toBytes(stats.entryCount == 0 ? 0 : (int) (stats.valueLengths / stats.entryCount)));
+
+        Utils.FixedFileTrailer trailer = tail.trailer;
+
+        trailer.fileinfoOffset = outputStream.getPos();
+        fileInfo.write(outputStream);
+
+        trailer.dataIndexOffset = outputStream.getPos();
+        trailer.dataIndexCount = written;
+        HFileTail.writeIndex(outputStream, keys, offsets, sizes, written);
+
+        int metaCount = (int) tail.metaIndex.getLength();
+        if (metaCount > 0) {
+            byte[][] metaNames = new byte[metaCount][];
+            long[] metaOffsets = new long[metaCount];
+            int[] metaSizes = new int[metaCount];
+            for (int i = 0; i < metaCount; ++i) {
+                metaNames[i] = tail.metaIndex.getKey(i);
+                metaOffsets[i] = tail.metaIndex.getOffset(i) - dataEnd + metaStart;
+                metaSizes[i] = (int) tail.metaIndex.getSize(i);
+            }
+            trailer.metaIndexOffset = outputStream.getPos();
+            HFileTail.writeIndex(outputStream, metaNames, metaOffsets, metaSizes, metaCount);
+        }
+
+        trailer.totalUncompressedBytes -= lostBytes;
+        trailer.entryCount = (int) stats.entryCount;
+        trailer.serialize(outputStream);
+
+        inputStream.close();
+        outputStream.sync();
+        outputStream.close();
+
+        log("compact output:", formatFileSize(fs.getFileStatus(output).getLen()), "of", formatFileSize(totalSize) + ",", written, "of", count, "data blocks");
+
+        return new DataRewrite.Result(count, lostKeysCount);
+    }
+
+    // Walks the records in data[start, end) and adds them to stats. Returns false, leaving stats
+    // unchanged, if the records do not fill the block exactly.
+    static boolean scanRecords(byte[] data, int start, int end, Stats stats) {
+        long entries = 0;
+        long keyLengths = 0;
+        long valueLengths = 0;
+        int lastKeyOffset = -1;
+        int lastKeyLength = 0;
+
+        int position = start;
+        while (position < end) {
+            if (position + HFileDataBlock.RECORD_HEADER_SIZE > end) {
+                return false;
+            }
+            int keyLength = Bytes.toInt(data, position);
+            int valueLength = Bytes.toInt(data, position + 4);
+            long next = (long) position + HFileDataBlock.RECORD_HEADER_SIZE + keyLength + valueLength;
+            if (keyLength <= 0 || valueLength < 0 || next > end) {
+                return false;
+            }
+
+            entries += 1;
+            keyLengths += keyLength;
+            valueLengths += valueLength;
+            lastKeyOffset = position + HFileDataBlock.RECORD_HEADER_SIZE;
+            lastKeyLength = keyLength;
+            position = (int) next;
+        }
+
+        if (entries == 0) {
+            return false;
+        }
+
+        stats.entryCount += entries;
+        stats.keyLengths += keyLengths;
+        stats.valueLengths += valueLengths;
+        stats.lastKeyOffset = lastKeyOffset;
+        stats.lastKeyLength = lastKeyLength;
+        return true;
+    }
+
+    private static void copyRange(HedgedReader reader, FSDataOutputStream outputStream, long start, long end) throws IOException {
+        byte[] chunk = BufferPool.acquire();
+        try {
+            for (long position = start; position < end; ) {
+                int length = (int) Math.min(chunk.length, end - position);
+                reader.readFully(position, chunk, 0, length);
+                outputStream.write(chunk, 0, length);
+                Metrics.counter("bytes.read").add(length);
+                Metrics.counter("bytes.written").add(length);
+                position += length;
+            }
+        } finally {
+            BufferPool.release(chunk);
+        }
+    }
+
+}
@@ -26,6 +26,53 @@ public class Config {
         }
     }
 
+    public static class IndexCache {
+        // off by default, set -Dhbaserecovery.index.cache=DIR to cache block indexes in DIR
+        public static final String DIRECTORY = System.getProperty("hbaserecovery.index.cache");
+        public static final boolean ENABLED = DIRECTORY != null && !DIRECTORY.isEmpty();
+        public static final String USAGE = "Set -Dhbaserecovery.index.cache=DIR to keep parsed block indexes in DIR for later runs.";
+    }
+
+    public static class Log {
+        // -Dhbaserecovery.log.level=DEBUG|INFO|WARN|ERROR, an unknown level falls back to INFO
+        // and Log warns about it once it is running
+        public static final String LEVEL_NAME = System.getProperty("hbaserecovery.log.level", "INFO").trim().toUpperCase();
+        public static final com.ambrella.Log.Level LEVEL = parseLevel(LEVEL_NAME);
+        // -Dhbaserecovery.log.format=json writes one JSON object per line
+        public static final boolean JSON = System.getProperty("hbaserecovery.log.format", "text").equals("json");
+        public static final long PROGRESS_INTERVAL_MS = Long.getLong("hbaserecovery.log.progress.interval", 1000);
+        public static final int QUEUE_SIZE = 16 * 1024;
+        public static final long SHUTDOWN_TIMEOUT_MS = 10 * 1000;
+
+        static com.ambrella.Log.Level parseLevel(String name) {
+            try {
+                return com.ambrella.Log.Level.valueOf(name);
+            } catch (IllegalArgumentException e) {
+                return com.ambrella.Log.Level.INFO;
+            }
+        }
+    }
+
+    public static class RegionInfo {
+        // -Dhbaserecovery.regioninfo.threads=N regions processed at the same time with -a
+        public static final int TABLE_THREADS = Math.max(1, Integer.getInteger("hbaserecovery.regioninfo.threads", 16));
+    }
+
+    public static class Metrics {
+        // -Dhbaserecovery.metrics.interval=0 disables the periodic summary line
+        public static final long SUMMARY_INTERVAL_S = Long.getLong("hbaserecovery.metrics.interval", 30);
+    }
+
+    public static class Hedge {
+        // -Dhbaserecovery.hedge=false reads through the DFSClient stream only
+        public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("hbaserecovery.hedge", "true"));
+        // a read that takes longer than THRESHOLD_MS plus its length at MIN_RATE is hedged
+        public static final long THRESHOLD_MS = Long.getLong("hbaserecovery.hedge.threshold", 500);
+        public static final long MIN_RATE = Long.getLong("hbaserecovery.hedge.rate", 16 * 1024 * 1024);
+        // reads a datanode must have served before it can be excluded as slow
+        public static final int MIN_READS = 4;
+    }
+
 
 
 }
@@ -0,0 +1,130 @@
+package com.ambrella;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Corrupted files found by CorruptionScanner, one JSON object per line:
+//
+//   {"path":"/hbase/TABLE/REGION/FAMILY/FILE","length":N,"blocks":[{"id":ID,"offset":N,"length":N},...]}
+//
+// Blocks are the HDFS blocks that are corrupt or have no replica. Their ids are -1 for files
+// of file systems without block ids. The format is line oriented so the shell scripts can cut
+// paths and sizes out of it without a JSON parser.
+public class CorruptionManifest {
+
+    private static final Pattern LINE = Pattern.compile("^\\{\"path\":\"((?:[^\"\\\\]|\\\\.)*)\",\"length\":(\\d+),\"blocks\":\\[(.*)\\]\\}$");
+    private static final Pattern BLOCK = Pattern.compile("\\{\"id\":(-?\\d+),\"offset\":(\\d+),\"length\":(\\d+)\\}");
+
+    static class Block {
+        final long id;
+        final long offset;
+        final long length;
+
+        Block(long id, long offset, long length) {
+            this.id = id;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    static class Entry {
+        final Path path;
+        final long length;
+        final List<Block> blocks;
+
+        Entry(Path path, long length, List<Block> blocks) {
+            this.path = path;
+            this.length = length;
+            this.blocks = blocks;
+        }
+
+        // Enough for choosing and ordering files, modification time and block size are not known
+        FileStatus toFileStatus() {
+            return new FileStatus(length, false, 0, 0, 0, path);
+        }
+    }
+
+    static void write(File file, List<Entry> entries) throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            for (Entry entry : entries) {
+                out.write(toJson(entry));
+                out.write('\n');
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    static List<Entry> read(File file) throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            int number = 0;
+            while ((line = in.readLine()) != null) {
+                number += 1;
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                Entry entry = parse(line);
+                if (entry == null) {
+                    throw new IOException("invalid manifest line " + number + " in " + file + ": " + line);
+                }
+                entries.add(entry);
+            }
+        } finally {
+            in.close();
+        }
+        return entries;
+    }
+
+    static String toJson(Entry entry) {
+        StringBuilder json = new StringBuilder("{\"path\":\"");
+        String path = entry.path.toUri().getPath();
+        for (int i = 0; i < path.length(); ++i) {
+            char c = path.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\');
+            }
+            json.append(c);
+        }
+        json.append("\",\"length\":").append(entry.length).append(",\"blocks\":[");
+        for (int i = 0; i < entry.blocks.size(); ++i) {
+            Block block = entry.blocks.get(i);
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"id\":").append(block.id)
+                    .append(",\"offset\":").append(block.offset)
+                    .append(",\"length\":").append(block.length).append('}');
+        }
+        return json.append("]}").toString();
+    }
+
+    // Returns null if the line is not in the format written by toJson()
+    static Entry parse(String line) {
+        Matcher matcher = LINE.matcher(line.trim());
+        if (!matcher.matches()) {
+            return null;
+        }
+
+        String path = matcher.group(1).replaceAll("\\\\(.)", "$1");
+
+        List<Block> blocks = new ArrayList<Block>();
+        Matcher block = BLOCK.matcher(matcher.group(3));
+        while (block.find()) {
+            blocks.add(new Block(Long.parseLong(block.group(1)), Long.parseLong(block.group(2)), Long.parseLong(block.group(3))));
+        }
+
+        return new Entry(new Path(path), Long.parseLong(matcher.group(2)), Collections.unmodifiableList(blocks));
+    }
+
+}
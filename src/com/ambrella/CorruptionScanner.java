@@ -0,0 +1,232 @@
+package com.ambrella;
+
+import com.google.common.util.concurrent.RateLimiter;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.hdfs.protocol.LocatedBlock;
+import org.apache.hadoop.hdfs.protocol.LocatedBlocks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.ambrella.Log.log;
+import static com.ambrella.Utils.exit;
+import static com.ambrella.Utils.formatFileSize;
+
+// Finds the files with corrupt or missing HDFS blocks under a directory without hadoop fsck.
+// Directories are listed level by level in parallel, then every file takes a single
+// getBlockLocations call for all of its blocks. All namenode calls share one rate limit,
+// so a scan of a large table does not load a namenode that is busy with the recovery.
+// The result is written as a CorruptionManifest for TableRewrite and the shell scripts.
+public class CorruptionScanner {
+
+    static final int DEFAULT_THREADS = 8;
+    static final double DEFAULT_RPC_RATE = 200;
+
+    public static void main(String[] args) throws IOException {
+
+        int threads = DEFAULT_THREADS;
+        double rpcRate = DEFAULT_RPC_RATE;
+        boolean argsValid = args.length >= 2;
+
+        try {
+            for (int i = 2; i < args.length && argsValid; i += 2) {
+                if (i + 1 >= args.length) {
+                    argsValid = false;
+                } else if (args[i].equals("-t")) {
+                    threads = Integer.parseInt(args[i + 1]);
+                    argsValid = threads > 0;
+                } else if (args[i].equals("-r")) {
+                    rpcRate = Double.parseDouble(args[i + 1]);
+                    argsValid = rpcRate > 0;
+                } else {
+                    argsValid = false;
+                }
+            }
+        } catch (NumberFormatException e) {
+            argsValid = false;
+        }
+
+        if (!argsValid) {
+            Log.includeTimestamp = false;
+            log("arguments: PATH MANIFEST [-t THREADS] [-r RPCS_PER_SECOND]");
+            log("Writes the files under PATH that have corrupt or missing blocks to the local file MANIFEST,");
+            log("one JSON object per line with the file length and the ids and byte ranges of its bad blocks.");
+            log("Options:");
+            log("\t -t \t number of concurrent namenode calls (default " + DEFAULT_THREADS + ")");
+            log("\t -r \t maximum namenode calls per second (default " + (int) DEFAULT_RPC_RATE + ")");
+            exit(1);
+        }
+
+        Path root = new Path(args[0]);
+        File manifest = new File(args[1]);
+
+        Configuration conf = Config.Hadoop.makeConfig();
+        FileSystem fs = root.getFileSystem(conf);
+
+        if (!fs.exists(root)) {
+            Log.error("path does not exist:", root);
+            exit(1);
+        }
+
+        List<CorruptionManifest.Entry> entries = scan(conf, fs, root, threads, rpcRate);
+        CorruptionManifest.write(manifest, entries);
+
+        long totalSize = 0;
+        for (CorruptionManifest.Entry entry : entries) {
+            totalSize += entry.length;
+        }
+
+        log("found", entries.size(), "corrupted files,", "total size", formatFileSize(totalSize) + ", manifest written to", manifest.getAbsolutePath());
+        Metrics.logSummary();
+
+        exit(0);
+    }
+
+    // Corrupted files under root sorted by path. Names starting with a dot are skipped, like
+    // the .logs, .tmp and .regioninfo entries of HBase table directories.
+    static List<CorruptionManifest.Entry> scan(final Configuration conf, final FileSystem fs, Path root, int threads, double rpcRate) throws IOException {
+
+        final RateLimiter rateLimiter = RateLimiter.create(rpcRate);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        try {
+            List<FileStatus> files = new ArrayList<FileStatus>();
+            List<Path> directories = Collections.singletonList(root);
+
+            long phaseStart = System.nanoTime();
+
+            while (!directories.isEmpty()) {
+                List<Future<FileStatus[]>> listings = new ArrayList<Future<FileStatus[]>>();
+                for (final Path directory : directories) {
+                    listings.add(executor.submit(new Callable<FileStatus[]>() {
+                        public FileStatus[] call() throws IOException {
+                            rateLimiter.acquire();
+                            long rpcStart = System.nanoTime();
+                            FileStatus[] statuses = fs.listStatus(directory);
+                            Metrics.histogram("namenode.listStatus").updateSince(rpcStart);
+                            return statuses == null ? new FileStatus[0] : statuses;
+                        }
+                    }));
+                }
+
+                List<Path> next = new ArrayList<Path>();
+                for (Future<FileStatus[]> listing : listings) {
+                    for (FileStatus status : getResult(listing)) {
+                        if (status.getPath().getName().startsWith(".")) {
+                            continue;
+                        }
+                        if (status.isDir()) {
+                            next.add(status.getPath());
+                        } else {
+                            files.add(status);
+                        }
+                    }
+                }
+                directories = next;
+            }
+
+            Metrics.histogram("phase.list").updateSince(phaseStart);
+            log("listed", files.size(), "files under", root);
+
+            phaseStart = System.nanoTime();
+
+            final AtomicInteger checked = new AtomicInteger();
+            final int fileCount = files.size();
+            List<Future<CorruptionManifest.Entry>> results = new ArrayList<Future<CorruptionManifest.Entry>>();
+
+            for (final FileStatus file : files) {
+                results.add(executor.submit(new Callable<CorruptionManifest.Entry>() {
+                    public CorruptionManifest.Entry call() throws IOException {
+                        rateLimiter.acquire();
+                        CorruptionManifest.Entry entry = checkFile(conf, fs, file);
+                        Metrics.counter("scan.files").inc();
+
+                        int done = checked.incrementAndGet();
+                        if (Log.progressDue()) {
+                            log("checked", done, "of", fileCount, "files");
+                        }
+                        return entry;
+                    }
+                }));
+            }
+
+            List<CorruptionManifest.Entry> entries = new ArrayList<CorruptionManifest.Entry>();
+            for (Future<CorruptionManifest.Entry> result : results) {
+                CorruptionManifest.Entry entry = getResult(result);
+                if (entry != null) {
+                    log("corrupted file:", entry.path, formatFileSize(entry.length), entry.blocks.size(), "bad blocks");
+                    Metrics.counter("scan.corrupted").inc();
+                    entries.add(entry);
+                }
+            }
+
+            Metrics.histogram("phase.scan").updateSince(phaseStart);
+
+            Collections.sort(entries, new Comparator<CorruptionManifest.Entry>() {
+                public int compare(CorruptionManifest.Entry a, CorruptionManifest.Entry b) {
+                    return a.path.toString().compareTo(b.path.toString());
+                }
+            });
+
+            return entries;
+
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // Returns null if all blocks of the file have a healthy replica, or the file was deleted
+    // since it was listed. The bad blocks are the same ones BlockAvailabilityMap treats as missing.
+    static CorruptionManifest.Entry checkFile(Configuration conf, FileSystem fs, FileStatus file) throws IOException {
+        List<CorruptionManifest.Block> blocks = new ArrayList<CorruptionManifest.Block>();
+
+        if (fs instanceof DistributedFileSystem) {
+            long rpcStart = System.nanoTime();
+            LocatedBlocks located = BlockAvailabilityMap.getNamenode(conf).getBlockLocations(file.getPath().toUri().getPath(), 0, file.getLen());
+            Metrics.histogram("namenode.getBlockLocations").updateSince(rpcStart);
+
+            if (located == null) {
+                // compactions and splits delete store files while the table is scanned
+                log("file deleted during the scan, skipping:", file.getPath());
+                Metrics.counter("files.vanished").inc();
+                return null;
+            }
+
+            for (LocatedBlock block : located.getLocatedBlocks()) {
+                if (block.isCorrupt() || block.getLocations().length == 0) {
+                    blocks.add(new CorruptionManifest.Block(block.getBlock().getBlockId(), block.getStartOffset(), block.getBlockSize()));
+                }
+            }
+        } else {
+            for (BlockLocation location : fs.getFileBlockLocations(file, 0, file.getLen())) {
+                if (location.getHosts().length == 0) {
+                    blocks.add(new CorruptionManifest.Block(-1, location.getOffset(), location.getLength()));
+                }
+            }
+        }
+
+        return blocks.isEmpty() ? null : new CorruptionManifest.Entry(file.getPath(), file.getLen(), blocks);
+    }
+
+    private static <T> T getResult(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted while scanning", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+}
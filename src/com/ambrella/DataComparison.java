@@ -1,28 +1,73 @@
 package com.ambrella;
 
-import com.google.common.collect.Range;
-import com.google.common.collect.RangeSet;
-import com.google.common.collect.TreeRangeSet;
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.BlockLocation;
-import org.apache.hadoop.fs.FSDataInputStream;
-import org.apache.hadoop.fs.FileSystem;
-import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.*;
 import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.util.Bytes;
 
 import java.io.IOException;
-import java.util.Arrays;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.ambrella.Log.log;
 import static com.ambrella.Utils.readHFileIndex;
 
 public class DataComparison {
 
+    static final String ORIGINAL_SUFFIX = ".ORIGINAL";
+    static final String RESTORED_SUFFIX = ".RESTORED";
+
+    static class Report {
+        final Path input;
+        final Path output;
+        final AtomicLong comparedBlocks = new AtomicLong();
+        final AtomicLong skippedBlocks = new AtomicLong();
+        final List<String> mismatches = Collections.synchronizedList(new ArrayList<String>());
+
+        Report(Path input, Path output) {
+            this.input = input;
+            this.output = output;
+        }
+
+        void mismatch(String message) {
+            Log.error(input.getName(), message);
+            mismatches.add(message);
+        }
+
+        boolean succeeded() {
+            return mismatches.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return input + " <-> " + output + ": " + (succeeded() ? "OK" : "FAILED") +
+                    ", compared blocks=" + comparedBlocks +
+                    ", skipped missing blocks=" + skippedBlocks +
+                    ", mismatches=" + mismatches.size();
+        }
+    }
+
     public static void main(String[] args) {
 
-        if (args.length != 2) {
-            log("args: INPUT_FILE OUTPUT_FILE");
+        int threads = 4;
+        boolean argsValid = args.length == 2;
+
+        if (args.length == 4 && args[2].equals("-p")) {
+            try {
+                threads = Integer.parseInt(args[3]);
+                argsValid = threads > 0;
+            } catch (NumberFormatException e) {
+                argsValid = false;
+            }
+        }
+
+        if (!argsValid) {
+            log("args: INPUT OUTPUT [-p THREADS]");
             log("Compares data of all keys of two files.");
+            log("If INPUT and OUTPUT are directories, compares every pair of files with the same name,");
+            log("ignoring " + ORIGINAL_SUFFIX + " and " + RESTORED_SUFFIX + " suffixes.");
             System.exit(1);
         }
 
@@ -32,110 +77,251 @@ public class DataComparison {
         Configuration conf = Config.Hadoop.makeConfig();
 
         try {
-            compareFiles(conf, input, output);
+            List<Report> reports = compare(conf, input, output, threads);
+
+            Metrics.logSummary();
+            log("SUMMARY:");
+            boolean succeeded = true;
+            for (Report report : reports) {
+                log(report);
+                for (String mismatch : report.mismatches) {
+                    log("\t", mismatch);
+                }
+                succeeded &= report.succeeded();
+            }
+
+            if (succeeded) {
+                log("VERIFICATION SUCCEEDED");
+                System.exit(0);
+            }
+
+            log("VERIFICATION FAILED");
+            System.exit(2);
+
         } catch (Exception e) {
-            log("UNEXPECTED EXCEPTION:");
-            e.printStackTrace();
+            Log.error("UNEXPECTED EXCEPTION:", e);
             System.exit(2);
         }
     }
 
-    public static void compareFiles(Configuration conf, Path input, Path output) throws IOException, IllegalAccessException, NoSuchFieldException, ClassNotFoundException {
+    public static List<Report> compare(Configuration conf, Path input, Path output, int threads) throws IOException, IllegalAccessException, NoSuchFieldException, ClassNotFoundException, InterruptedException {
 
-        FileSystem fs = input.getFileSystem(conf);
+        FileSystem inputFs = input.getFileSystem(conf);
+        FileSystem outputFs = output.getFileSystem(conf);
 
-        Utils.Index inputIndex = readHFileIndex(conf, input);
-        Utils.Index outputIndex = readHFileIndex(conf, output);
+        List<Report> reports = new ArrayList<Report>();
 
-        if (inputIndex == null || outputIndex == null) {
-            log("ERROR: failed to read index");
-            System.exit(2);
+        if (!inputFs.getFileStatus(input).isDir()) {
+            reports.add(compareFiles(conf, input, output, threads));
+            return reports;
+        }
+
+        Map<String, Path> inputs = listFiles(inputFs, input, RESTORED_SUFFIX, ORIGINAL_SUFFIX);
+        Map<String, Path> outputs = listFiles(outputFs, output, ORIGINAL_SUFFIX, RESTORED_SUFFIX);
+
+        for (Map.Entry<String, Path> entry : inputs.entrySet()) {
+            Path pair = outputs.remove(entry.getKey());
+            if (pair == null) {
+                Report report = new Report(entry.getValue(), new Path(output, entry.getKey()));
+                report.mismatch("output file does not exist");
+                reports.add(report);
+                continue;
+            }
+            reports.add(compareFiles(conf, entry.getValue(), pair, threads));
+        }
+
+        for (Map.Entry<String, Path> entry : outputs.entrySet()) {
+            Report report = new Report(new Path(input, entry.getKey()), entry.getValue());
+            report.mismatch("input file does not exist");
+            reports.add(report);
+        }
+
+        return reports;
+    }
+
+    // Files of the directory by their name without suffix, skipping the ones with excludedSuffix
+    private static Map<String, Path> listFiles(FileSystem fs, Path dir, String excludedSuffix, String suffix) throws IOException {
+        Map<String, Path> files = new TreeMap<String, Path>();
+
+        for (FileStatus status : fs.listStatus(dir)) {
+            String name = status.getPath().getName();
+            if (status.isDir() || name.endsWith(excludedSuffix)) {
+                continue;
+            }
+            if (name.endsWith(suffix)) {
+                name = name.substring(0, name.length() - suffix.length());
+            }
+            files.put(name, status.getPath());
+        }
+
+        return files;
+    }
+
+    public static Report compareFiles(Configuration conf, final Path input, final Path output, int threads) throws IOException, IllegalAccessException, NoSuchFieldException, ClassNotFoundException, InterruptedException {
+
+        final Report report = new Report(input, output);
+
+        log("comparing", input, "with", output);
+
+        long verifyStart = System.nanoTime();
+
+        final FileSystem fs = input.getFileSystem(conf);
+        FileSystem outputFs = output.getFileSystem(conf);
+
+        final Utils.Index inputIndex;
+        final Utils.Index outputIndex;
+        try {
+            inputIndex = readHFileIndex(conf, input);
+            outputIndex = readHFileIndex(conf, output);
+        } catch (IOException e) {
+            report.mismatch("failed to read index: " + e.getMessage());
+            return report;
         }
 
         log("read", inputIndex.getLength(), "indexes from input file");
         log("read", outputIndex.getLength(), "indexes from output file");
 
         if (inputIndex.getLength() != outputIndex.getLength()) {
-            log("ERROR: indexes lengths do not match!");
-            System.exit(2);
+            report.mismatch("indexes lengths do not match: " + inputIndex.getLength() + " != " + outputIndex.getLength());
+            return report;
         }
 
-        RangeSet<Long> missingRanges = TreeRangeSet.create();
+        final FileStatus inputStatus = fs.getFileStatus(input);
+        final IntervalSet missingRanges = BlockAvailabilityMap.build(conf, fs, input).getMissingRanges();
 
-        FSDataInputStream inputStream = fs.open(input);
-        FSDataInputStream outputStream = fs.open(output);
+        final FSDataInputStream inputStream = fs.open(input);
+        final HedgedReader inputReader = HedgedReader.open(conf, fs, input, inputStream);
+        final FSDataInputStream outputStream = outputFs.open(output);
 
+        final List<ParallelDataRewrite.Span> spans = ParallelDataRewrite.splitSpans(inputIndex, inputStatus.getBlockSize(), ParallelDataRewrite.MAX_SPAN_SIZE);
+        final AtomicInteger finishedSpans = new AtomicInteger();
 
-        for (int i = 0; i < inputIndex.getLength(); ++i) {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
 
-            log("checking block", i, "of", inputIndex.getLength(), "(" + (i * 100 / inputIndex.getLength()) + "%)");
+        for (final ParallelDataRewrite.Span span : spans) {
+            futures.add(executor.submit(new Callable<Void>() {
+                public Void call() throws IOException {
+                    for (int i = span.firstBlock; i < span.endBlock; ++i) {
+                        compareBlock(fs, inputStatus, inputReader, outputStream, inputIndex, outputIndex, i, missingRanges, report);
+                    }
+                    int finished = finishedSpans.incrementAndGet();
+                    log("checked span", finished, "of", spans.size(), "(" + (finished * 100 / spans.size()) + "%)");
+                    return null;
+                }
+            }));
+        }
+
+        executor.shutdown();
 
-            if (inputIndex.getSize(i) != outputIndex.getSize(i)) {
-                log("ERROR: block size does not match at key index=" + i);
-                System.exit(2);
+        try {
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    report.mismatch("comparison failed: " + e.getCause());
+                }
             }
+        } finally {
+            executor.shutdownNow();
+            inputStream.close();
+            outputStream.close();
+        }
 
-            Range<Long> blockByteRange = Range.closed(inputIndex.getOffset(i), inputIndex.getOffset(i) + inputIndex.getSize(i));
+        Metrics.histogram("phase.verify").updateSince(verifyStart);
 
-            if (!missingRanges.subRangeSet(blockByteRange).isEmpty()) {
-                log("skipping key index=" + i + " because containing block is missing from input file");
-                continue;
+        log(report);
+
+        return report;
+    }
+
+    private static void compareBlock(FileSystem fs, FileStatus inputStatus, PositionedReadable inputStream, PositionedReadable outputStream, Utils.Index inputIndex, Utils.Index outputIndex, int i, IntervalSet missingRanges, Report report) throws IOException {
+
+        long offset = inputIndex.getOffset(i);
+        int size = (int) inputIndex.getSize(i);
+
+        if (size != outputIndex.getSize(i)) {
+            report.mismatch("block size does not match at key index=" + i);
+            return;
+        }
+
+        synchronized (missingRanges) {
+            if (missingRanges.intersects(offset, offset + size)) {
+                report.skippedBlocks.incrementAndGet();
+                return;
+            }
+        }
+
+        HFileDataBlock inputDataBlock;
+        try {
+            inputDataBlock = HFileDataBlock.read(inputStream, offset, size);
+            Metrics.counter("bytes.read").add(size);
+        } catch (IOException exception) {
+            BlockLocation[] locations = fs.getFileBlockLocations(inputStatus, offset, size);
+
+            synchronized (missingRanges) {
+                for (BlockLocation loc : locations) {
+                    missingRanges.add(loc.getOffset(), loc.getOffset() + loc.getLength());
+                    log("skipping input blocks in non-readable range:", IntervalSet.toString(loc.getOffset(), loc.getOffset() + loc.getLength()));
+                }
             }
 
-            HFileDataBlock inputDataBlock = HFileDataBlock.read(inputStream, (int) inputIndex.getSize(i));
-            HFileDataBlock outputDataBlock = HFileDataBlock.read(outputStream, (int) outputIndex.getSize(i));
+            report.skippedBlocks.incrementAndGet();
+            return;
+        }
 
-            if (inputDataBlock.getRecords().size() != outputDataBlock.getRecords().size()) {
-                log("ERROR: record count does not match in data block index=" + i);
-                System.exit(2);
+        HFileDataBlock outputDataBlock;
+        try {
+            outputDataBlock = HFileDataBlock.read(outputStream, outputIndex.getOffset(i), size);
+            Metrics.counter("bytes.read").add(size);
+        } catch (IOException exception) {
+            report.mismatch("failed to read output block index=" + i + ": " + exception.getMessage());
+            return;
+        }
+
+        try {
+            String mismatch = compareRecords(inputDataBlock, outputDataBlock);
+            if (mismatch != null) {
+                report.mismatch(mismatch + " in data block index=" + i);
             }
+        } catch (IOException exception) {
+            report.mismatch("failed to parse records of data block index=" + i + ": " + exception.getMessage());
+        }
 
-            inputStream.seek(inputIndex.getOffset(i));
-            outputStream.seek(outputIndex.getOffset(i));
+        report.comparedBlocks.incrementAndGet();
+    }
 
-            for (int j = 0; j < inputDataBlock.getRecords().size(); ++j) {
-                HFileDataBlockRecord inputBlock;
-                HFileDataBlockRecord outputBlock;
-                try {
-                    inputBlock = inputDataBlock.getRecords().get(j);
-                    outputBlock = outputDataBlock.getRecords().get(j);
-                } catch (IOException exception) {
-
-                    BlockLocation[] locations = fs.getFileBlockLocations(fs.getFileStatus(input),
-                            inputIndex.getOffset(i),
-                            inputIndex.getSize(i));
-
-                    for (BlockLocation loc : locations) {
-                        Range<Long> range = Range.<Long>closed(loc.getOffset(), loc.getOffset() + loc.getLength());
-                        missingRanges.add(range);
-                        log("skipping input blocks in non-readable range:", range);
-                    }
+    // Walks both blocks record by record, returns null if they are equal
+    static String compareRecords(HFileDataBlock inputDataBlock, HFileDataBlock outputDataBlock) throws IOException {
 
-                    i -= 1;
-                    continue;
-                }
+        HFileDataBlock.RecordCursor inputCursor = inputDataBlock.cursor();
+        HFileDataBlock.RecordCursor outputCursor = outputDataBlock.cursor();
 
-                if (!Arrays.equals(inputBlock.key, outputBlock.key)) {
-                    log("ERROR: block keys do not match key index=" + i + ":", KeyValue.keyToString(inputBlock.key), "!=", KeyValue.keyToString(outputBlock.key));
-                    System.exit(2);
-                }
+        byte[] inputData = inputDataBlock.data;
+        byte[] outputData = outputDataBlock.data;
 
-                if (inputBlock.data.length != outputBlock.data.length) {
-                    log("blocks data sizes do not match:", inputBlock.data.length, "!=", outputBlock.data.length);
-                    System.exit(2);
-                }
+        for (int j = 0; ; ++j) {
+            boolean inputHasNext = inputCursor.next();
+            boolean outputHasNext = outputCursor.next();
 
-                if (!Arrays.equals(inputBlock.data, outputBlock.data)) {
-                    log("ERROR: block data does not match key index=" + i);
-                    System.exit(2);
-                }
+            if (!inputHasNext || !outputHasNext) {
+                return inputHasNext == outputHasNext ? null : "record count does not match";
             }
 
-        }
+            if (Bytes.compareTo(inputData, inputCursor.getKeyOffset(), inputCursor.getKeyLength(),
+                    outputData, outputCursor.getKeyOffset(), outputCursor.getKeyLength()) != 0) {
+                return "keys do not match at record " + j + ": " + inputCursor.getKeyString() + " != " + outputCursor.getKeyString();
+            }
 
-        log("VERIFICATION SUCCEEDED");
+            if (inputCursor.getValueLength() != outputCursor.getValueLength()) {
+                return "data sizes do not match at record " + j + ": " + inputCursor.getValueLength() + " != " + outputCursor.getValueLength();
+            }
 
-        System.exit(0);
+            if (Bytes.compareTo(inputData, inputCursor.getValueOffset(), inputCursor.getValueLength(),
+                    outputData, outputCursor.getValueOffset(), outputCursor.getValueLength()) != 0) {
+                return "data does not match at record " + j + " (key " + inputCursor.getKeyString() + ")";
+            }
+        }
     }
 
     static class Block {
@@ -1,73 +1,97 @@
 package com.ambrella;
 
-import com.google.common.collect.Range;
-import com.google.common.collect.RangeSet;
-import com.google.common.collect.TreeRangeSet;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.*;
 import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.io.hfile.HFile;
 import org.apache.hadoop.hbase.io.hfile.HFileScanner;
 import org.apache.hadoop.hbase.regionserver.StoreFile;
-import org.apache.hadoop.hdfs.DFSClient;
-import org.apache.hadoop.hdfs.protocol.ClientProtocol;
-import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
-import org.apache.hadoop.hdfs.protocol.LocatedBlock;
-import org.apache.hadoop.hdfs.protocol.LocatedBlocks;
+import org.apache.hadoop.hbase.util.Bytes;
 
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.lang.reflect.Field;
 import java.util.Arrays;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
 
 import static com.ambrella.Log.log;
 import static com.ambrella.Utils.formatFileSize;
 
 public class DataRewrite {
 
-    private static ClientProtocol namenode = null;
+    // Size of the buffer used to copy runs of healthy data blocks with a single read
+    static final int COPY_BUFFER_SIZE = 16 * 1024 * 1024;
 
-    public static List<LocatedBlock> findMissingBlocks(String path, long fileLength, Configuration conf) throws IOException {
+    static final int BLOCK_HEADER_SIZE = C.DATABLOCKMAGIC.length + 4 + 4;
 
-        List<LocatedBlock> res = new LinkedList<LocatedBlock>();
+    static class Result {
+        final long blockCount;
+        final int lostKeysCount;
 
-        if (namenode == null) {
-            namenode = DFSClient.createNamenode(conf);
+        Result(long blockCount, int lostKeysCount) {
+            this.blockCount = blockCount;
+            this.lostKeysCount = lostKeysCount;
         }
+    }
 
-        LocatedBlocks locatedBlocks = namenode.getBlockLocations(path, 0, fileLength);
-        List<LocatedBlock> blocks = locatedBlocks.getLocatedBlocks();
-
-        for (LocatedBlock block : blocks) {
-
-            if (block.isCorrupt()) {
-                res.add(block);
-                continue;
-            }
-
-            DatanodeInfo[] locs = block.getLocations();
-
-            if (locs.length == 0) {
-                res.add(block);
+    private static boolean checkArgs(String[] args) {
+        if (args.length < 3) {
+            return false;
+        }
+        for (int i = 3; i < args.length; ++i) {
+            if ((args[i].equals("-p") || args[i].equals("-a")) && i + 1 < args.length) {
+                try {
+                    if (Integer.parseInt(args[++i]) <= 0) {
+                        return false;
+                    }
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            } else if (args[i].equals("-b") && i + 1 < args.length) {
+                ++i;
+            } else if (!args[i].equals("-f") && !args[i].equals("-c")) {
+                return false;
             }
         }
-
-        return res;
+        return true;
     }
 
     public static void main(String[] args) throws IOException, IllegalAccessException, ClassNotFoundException, NoSuchFieldException {
 
-        if (args.length != 3) {
+        if (!checkArgs(args)) {
             log("Arguments:");
-            log("INPUT_FILE OUTPUT_FILE MISSING_BLOCKS_LOGFILE");
+            log("INPUT_FILE OUTPUT_FILE MISSING_BLOCKS_LOGFILE [-p THREADS | -a DEPTH | -c] [-b BACKUP_FILE] [-f]");
             log("Input and output files must be in HDFS, missing blocks log can be only local file.");
+            log("An interrupted rewrite is resumed from MISSING_BLOCKS_LOGFILE.journal when it is started again.");
+            log(Config.IndexCache.USAGE);
+            log("Options:");
+            log("\t -p \t read HDFS-block aligned spans of the file in parallel using THREADS readers");
+            log("\t -a \t overlap reads and writes, reading up to DEPTH spans of " + formatFileSize(COPY_BUFFER_SIZE) + " ahead (default " + PipelinedDataRewrite.DEFAULT_DEPTH + ")");
+            log("\t -c \t compact output: leave lost blocks out and rebuild the index, uncompressed files only, not resumable");
+            log("\t -b \t take lost blocks from a copy of the input on any filesystem (hdfs://other-cluster/..., file:///...),");
+            log("\t    \t only blocks with the same first key and size in its index are used");
+            log("\t -f \t ignore the journal of an interrupted rewrite and start from the beginning");
             System.exit(1);
         }
 
+        int threads = 0;
+        int depth = 0;
+        boolean restart = false;
+        boolean compact = false;
+        Path backupPath = null;
+        for (int i = 3; i < args.length; ++i) {
+            if (args[i].equals("-p")) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-a")) {
+                depth = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-f")) {
+                restart = true;
+            } else if (args[i].equals("-c")) {
+                compact = true;
+            } else if (args[i].equals("-b")) {
+                backupPath = new Path(args[++i]);
+            }
+        }
+
         Configuration conf = Config.Hadoop.makeConfig();
 
         Path file = new Path(args[0]);
@@ -75,11 +99,26 @@ public class DataRewrite {
         Path output = new Path(args[1]);
         log("Reading: " + file + ", writing: " + output);
 
+        FileSystem fs = file.getFileSystem(conf);
+
+        if (!fs.exists(file)) {
+            Log.error("file does not exist: " + file);
+            return;
+        }
+
         String missingLogName = args[2];
         File missingLogCheckFile = new File(missingLogName);
 
-        if (missingLogCheckFile.exists()) {
-            log("Warning: missing blocks log file already exists and will be overwritten.");
+        RewriteJournal journal = new RewriteJournal(new File(missingLogName + ".journal"), fs.getFileStatus(file), output);
+        RewriteJournal.State state = null;
+        if (restart || compact) {
+            journal.delete();
+        } else {
+            state = journal.load(fs, Utils.readHFileIndex(conf, file));
+        }
+
+        if (state == null && missingLogCheckFile.exists()) {
+            Log.warn("missing blocks log file already exists and will be overwritten.");
         }
 
         File missingLogDir = missingLogCheckFile.getAbsoluteFile().getParentFile();
@@ -91,179 +130,426 @@ public class DataRewrite {
             }
         }
 
-        FileOutputStream missingLog = new FileOutputStream(missingLogName, false);
+        BackupSource backup = null;
+        if (backupPath != null) {
+            try {
+                backup = BackupSource.open(conf, backupPath);
+            } catch (IOException e) {
+                Log.error("failed to read the index of backup " + backupPath + ":", e);
+                System.exit(1);
+            }
+        }
 
-        FileSystem fs = file.getFileSystem(conf);
+        MissingLog missingLog;
+        if (state != null) {
+            log("resuming interrupted rewrite at block", state.nextBlock, "output offset", state.outputOffset);
+            missingLog = MissingLog.resume(missingLogCheckFile, state.missingLogOffset, state.spoolOffset);
+        } else {
+            missingLog = MissingLog.create(missingLogCheckFile);
+        }
+        missingLog.readLastKey(fs, file);
+        journal.setMissingLog(missingLog);
+
+        Result result;
+        if (compact) {
+            log("Writing only the readable blocks");
+            result = CompactDataRewrite.rewrite(conf, fs, file, output, missingLog, backup);
+        } else if (threads > 0) {
+            log("Using " + threads + " parallel readers");
+            result = ParallelDataRewrite.rewrite(conf, fs, file, output, missingLog, threads, journal, state, backup);
+        } else if (depth > 0) {
+            log("Reading up to " + depth + " spans ahead of the writer");
+            result = PipelinedDataRewrite.rewrite(conf, fs, file, output, missingLog, depth, journal, state, backup);
+        } else {
+            result = rewrite(conf, fs, file, output, missingLog, journal, state, backup);
+        }
 
-        if (!fs.exists(file)) {
-            log("ERROR, file does not exist: " + file);
-            return;
+        if (backup != null) {
+            backup.close();
         }
 
-        HFile.Reader reader = new HFile.Reader(fs, file, null, false);
+        long lostRanges = missingLog.finish();
+        journal.delete();
 
-        Map<byte[], byte[]> fileInfo = reader.loadFileInfo();
+        log("total number of lost keys:", result.lostKeysCount, "(" + (((double) result.lostKeysCount) / ((double) result.blockCount) * 100) + "%)");
+        log("file with list of lost keys:", new File(missingLogName).getAbsolutePath());
+        log("lost row ranges:", lostRanges, "in", MissingLog.storeFile(missingLogCheckFile).getAbsolutePath());
+        Metrics.logSummary();
 
-        long totalSize = fs.getFileStatus(file).getLen();
+        log("done, verifying the file");
 
-        log("Input file size:", formatFileSize(totalSize));
+        if (compact) {
+            log("Input file size:", formatFileSize(fs.getLength(file)) + ", output file size:", formatFileSize(fs.getLength(output)));
+        } else {
+            log("Input and output files sizes match:", fs.getLength(file) == fs.getLength(output));
+        }
 
-        RangeSet<Long> missingRanges = TreeRangeSet.create();
+        System.exit(0);
 
-        Field blockIndexField = null;
-        try {
-            blockIndexField = reader.getClass().getDeclaredField("blockIndex");
-        } catch (NoSuchFieldException e) {
-            log("Cloud not get HFile$BlockIndex class: " + e.getMessage());
-            return;
+        /*
+        if (verify(conf, fs, file, output, keys.length, missingRanges)) {
+
+            System.exit(0);
+
+            if (verifyChecksums(conf, fs, file, output, missingRanges)) {
+                System.exit(0);
+            } else {
+                System.exit(2);
+            }
+        } else {
+            System.exit(2);
         }
+        */
+    }
 
-        blockIndexField.setAccessible(true);
-        Object blockIndex = blockIndexField.get(reader);
+    static Result rewrite(Configuration conf, FileSystem fs, Path file, Path output, MissingLog missingLog) throws IOException, IllegalAccessException, ClassNotFoundException, NoSuchFieldException {
+        return rewrite(conf, fs, file, output, missingLog, null, null, null);
+    }
 
-        Class<?> c = Class.forName(HFile.class.getName() + "$BlockIndex");
+    // Checkpoints to the journal if it is not null, continues from state if it is not null,
+    // takes lost blocks from backup if it is not null
+    static Result rewrite(Configuration conf, FileSystem fs, Path file, Path output, MissingLog missingLog, RewriteJournal journal, RewriteJournal.State state, BackupSource backup) throws IOException, IllegalAccessException, ClassNotFoundException, NoSuchFieldException {
 
-        Field bkeys = c.getDeclaredField("blockKeys");
-        bkeys.setAccessible(true);
-        byte[][] keys = (byte[][]) bkeys.get(blockIndex);
+        long phaseStart = System.nanoTime();
+        Utils.Index index = Utils.readHFileIndex(conf, file);
+        Metrics.histogram("phase.index.load").updateSince(phaseStart);
 
-        Field boffsets = c.getDeclaredField("blockOffsets");
-        boffsets.setAccessible(true);
-        long[] offsets = (long[]) boffsets.get(blockIndex);
+        long totalSize = fs.getFileStatus(file).getLen();
+
+        log("Input file size:", formatFileSize(totalSize));
 
-        Field bsizes = c.getDeclaredField("blockDataSizes");
-        bsizes.setAccessible(true);
-        int[] sizes = (int[]) bsizes.get(blockIndex);
+        phaseStart = System.nanoTime();
+        BlockAvailabilityMap availability = BlockAvailabilityMap.build(conf, fs, file);
+        IntervalSet missingRanges = availability.getMissingRanges();
+        if (state != null) {
+            for (int i = 0; i < state.missingRanges.size(); ++i) {
+                missingRanges.add(state.missingRanges.getStart(i), state.missingRanges.getEnd(i));
+            }
+        }
+        Metrics.histogram("phase.availability").updateSince(phaseStart);
 
+        log("Known missing ranges:", missingRanges);
 
         log("Starting to process total " + totalSize + " bytes");
         FSDataInputStream inputStream = fs.open(file);
-        FSDataOutputStream outputStream = fs.create(output);
+        // bulk copies read the datanodes directly, hedged across replicas
+        HedgedReader reader = HedgedReader.open(conf, fs, file, inputStream);
+        FSDataOutputStream outputStream = journal != null ? journal.openOutput(fs, state) : fs.create(output);
 
-        int lostKeysCount = 0;
+        int lostKeysCount = copyBlocks(fs, file, inputStream, reader, outputStream, index, missingRanges, totalSize,
+                state != null ? state.nextBlock : 0, state != null ? state.lostKeys : 0, missingLog, journal, backup);
 
-        for (int i = 0; i < keys.length; ++i) {
-            byte[] key = keys[i];
-            int size = sizes[i];
-            size -= key.length + 4 + 4 + C.DATABLOCKMAGIC.length;
+        int last = (int) (index.getLength() - 1);
+        copyTrailer(inputStream, outputStream, index.getOffset(last) + index.getSize(last), totalSize);
 
-            inputStream.seek(offsets[i]);
+        inputStream.close();
+        outputStream.sync();
+        outputStream.close();
 
-            if (!missingRanges.subRangeSet(Range.closed(offsets[i], offsets[i] + sizes[i])).isEmpty()) {
+        if (journal != null) {
+            journal.finishOutput(fs);
+        }
 
-                log("MISSING: key=" + KeyValue.keyToString(key) + ", offset=" + offsets[i] + ", size=" + sizes[i]);
+        return new Result(index.getLength(), lostKeysCount);
+    }
 
-                lostKeysCount += 1;
+    // The data block loop of rewrite, from block first on: bulk copies of healthy runs, lost blocks
+    // spliced from backup or zero filled, other blocks streamed one by one. Blocks that fail to
+    // read add their HDFS blocks to missingRanges. Returns lostKeysCount plus the keys lost here.
+    static int copyBlocks(FileSystem fs, Path file, FSDataInputStream inputStream, PositionedReadable reader, FSDataOutputStream outputStream,
+                          Utils.Index index, IntervalSet missingRanges, long totalSize, int first, int lostKeysCount,
+                          MissingLog missingLog, RewriteJournal journal, BackupSource backup) throws IOException {
 
-                missingLog.write(KeyValue.keyToString(key).getBytes());
-                missingLog.write("\n".getBytes());
+        IntervalSet.Cursor missing = missingRanges.cursor();
+
+        byte[] copyBuffer = new byte[COPY_BUFFER_SIZE];
+        // blocks before this index are copied one by one because their bulk read failed
+        int bulkCopyFrom = 0;
+
+        for (int i = first; i < index.getLength(); ++i) {
+            if (journal != null && journal.isDue(outputStream.getPos())) {
+                journal.checkpoint(outputStream, i, lostKeysCount, missingRanges);
+            }
+
+            byte[] key = index.getKey(i);
+            long offset = index.getOffset(i);
+            int blockSize = (int) index.getSize(i);
+            int size = blockSize - (key.length + 4 + 4 + C.DATABLOCKMAGIC.length);
+
+            if (i >= bulkCopyFrom) {
+                int runEnd = healthyRunEnd(index, i, missing, copyBuffer.length);
+                if (runEnd > i) {
+                    try {
+                        int copied = copyRun(reader, outputStream, index, i, runEnd, copyBuffer);
+                        if (copied > 0) {
+                            i += copied - 1;
+                            logProgress(outputStream.getPos(), totalSize);
+                            continue;
+                        }
+                    } catch (IOException e) {
+                        log("bulk copy failed at offset=" + offset + ", copying blocks one by one:", e.getMessage());
+                        bulkCopyFrom = runEnd;
+                    }
+                }
+            }
+
+            inputStream.seek(offset);
+
+            if (missing.intersects(offset, offset + blockSize)) {
+
+                int spliced = backup != null ? spliceBlock(backup, outputStream, key, blockSize) : 0;
+                if (spliced > 0) {
+                    if (spliced < blockSize) {
+                        logLostKey(missingLog, index, i);
+                        lostKeysCount += 1;
+                    }
+                    logProgress(outputStream.getPos(), totalSize);
+                    continue;
+                }
+
+                logLostKey(missingLog, index, i);
+                lostKeysCount += 1;
 
                 outputStream.write(C.DATABLOCKMAGIC);
                 outputStream.writeInt(key.length);
                 outputStream.writeInt(size);
                 outputStream.write(key);
-                outputStream.write(new byte[size]);
+                BufferPool.writeZeros(outputStream, size);
+                Metrics.counter("bytes.written").add(blockSize);
 
             } else {
 
-                byte[] buffer = new byte[size];
-                int keySize = -1;
-                long processedBytes = 0;
-                int firstRecordDataSize;
-
+                // the block data is streamed through one chunk, so memory use does not depend on the block size
+                byte[] chunk = BufferPool.acquire();
                 try {
-                    inputStream.skipBytes(C.DATABLOCKMAGIC.length);
-                    processedBytes += C.DATABLOCKMAGIC.length;
-                    keySize = inputStream.readInt();
-                    processedBytes += 4;
-                    firstRecordDataSize = inputStream.readInt();
-                    processedBytes += 4;
-                    inputStream.skipBytes(keySize);
-                    processedBytes += keySize;
-                    long readByteCount = inputStream.read(buffer, 0, size);
-                    processedBytes += readByteCount;
-                    while (readByteCount < size) {
-                        long read = inputStream.read(buffer, (int) readByteCount, (int) (size - readByteCount));
-                        readByteCount += read;
-                        processedBytes += read;
+                    int keySize = -1;
+                    long processedBytes = 0;
+                    int firstRecordDataSize;
+                    int firstChunk = Math.min(size, chunk.length);
+
+                    long readStart = System.nanoTime();
+
+                    try {
+                        inputStream.skipBytes(C.DATABLOCKMAGIC.length);
+                        processedBytes += C.DATABLOCKMAGIC.length;
+                        keySize = inputStream.readInt();
+                        processedBytes += 4;
+                        firstRecordDataSize = inputStream.readInt();
+                        processedBytes += 4;
+                        inputStream.skipBytes(keySize);
+                        processedBytes += keySize;
+                        inputStream.readFully(chunk, 0, firstChunk);
+                        processedBytes += firstChunk;
+
+                    } catch (IOException e) {
+
+                        Metrics.counter("read.retries").inc();
+                        addMissingLocations(fs, file, offset + processedBytes, blockSize - processedBytes, missingRanges);
+
+                        i -= 1;
+                        continue;
                     }
 
-                } catch (IOException e) {
-
-                    BlockLocation[] locations = fs.getFileBlockLocations(fs.getFileStatus(file), offsets[i] + processedBytes, sizes[i] - processedBytes);
+                    Metrics.histogram("phase.read").updateSince(readStart);
+                    Metrics.datanodeRead(inputStream, readStart);
+                    Metrics.counter("bytes.read").add(processedBytes);
+
+                    long writeStart = System.nanoTime();
+                    outputStream.write(C.DATABLOCKMAGIC);
+                    outputStream.writeInt(key.length);
+                    outputStream.writeInt(firstRecordDataSize);
+                    outputStream.write(key);
+                    outputStream.write(chunk, 0, firstChunk);
+                    Metrics.histogram("phase.write").updateSince(writeStart);
+
+                    // Part of a block larger than a chunk is already written when a later chunk
+                    // fails, so it can not be retried as lost. The rest of its data is zeroed.
+                    boolean complete = true;
+                    for (long position = firstChunk; position < size; ) {
+                        int length = (int) Math.min(chunk.length, size - position);
+                        try {
+                            inputStream.readFully(chunk, 0, length);
+                        } catch (IOException e) {
+                            log("read failed after", position, "of", size, "bytes of block at offset=" + offset + ", zeroing the rest:", e.getMessage());
+                            addMissingLocations(fs, file, offset + blockSize - size + position, size - position, missingRanges);
+                            BufferPool.writeZeros(outputStream, size - position);
+                            complete = false;
+                            break;
+                        }
+                        Metrics.counter("bytes.read").add(length);
+                        outputStream.write(chunk, 0, length);
+                        position += length;
+                    }
 
-                    for (BlockLocation loc : locations) {
-                        Range<Long> range = Range.<Long>closed(loc.getOffset(), loc.getOffset() + loc.getLength());
-                        log("adding range to missing:", range);
-                        missingRanges.add(range);
+                    Metrics.counter("bytes.written").add(blockSize);
+                    if (complete) {
+                        Metrics.counter("blocks.salvaged").inc();
+                    } else {
+                        logLostKey(missingLog, index, i);
+                        lostKeysCount += 1;
                     }
 
-                    i -= 1;
-                    continue;
+                } finally {
+                    BufferPool.release(chunk);
                 }
 
-                outputStream.write(C.DATABLOCKMAGIC);
-                outputStream.writeInt(key.length);
-                outputStream.writeInt(firstRecordDataSize);
-                outputStream.write(key);
-                outputStream.write(buffer);
-
             }
 
-            double progress = ((((double) Math.round(((double) outputStream.getPos()) * 10000.0 / totalSize))) / 100.0);
-            String currentSize = String.format("%0" + ("" + totalSize).length() + "d", outputStream.getPos());
-            log("progress: " + (currentSize + "/" + totalSize + " bytes, ") + String.format("%.02f", progress) + "%");
+            logProgress(outputStream.getPos(), totalSize);
 
         }
 
-        missingLog.close();
+        return lostKeysCount;
+    }
 
-        log("Copying file trailer");
+    static void logLostKey(MissingLog missingLog, Utils.Index index, int block) throws IOException {
+        Log.warn("MISSING: key=" + KeyValue.keyToString(index.getKey(block)) + ", offset=" + index.getOffset(block) + ", size=" + index.getSize(block));
+        Metrics.counter("blocks.lost").inc();
 
-        inputStream.seek(offsets[offsets.length - 1] + sizes[sizes.length - 1]);
+        missingLog.add(index.getKey(block), block + 1 < index.getLength() ? index.getKey(block + 1) : null);
+    }
 
-        while (inputStream.getPos() < totalSize) {
+    // Copies the block from the backup to the output through one pooled chunk: the first chunk,
+    // with the header and key checked, then the rest of the block with ranged reads. Returns 0,
+    // with nothing written, if the backup does not have the block. A later chunk that fails
+    // can not be retracted, the rest of the block is zeroed and the bytes copied before it are
+    // returned, so the block counts as lost.
+    static int spliceBlock(BackupSource backup, FSDataOutputStream outputStream, byte[] key, int blockSize) throws IOException {
+        byte[] chunk = BufferPool.acquire();
+        try {
+            int length = Math.min(blockSize, chunk.length);
+            if (!backup.readBlock(key, blockSize, 0, length, chunk, 0)) {
+                return 0;
+            }
+            outputStream.write(chunk, 0, length);
+
+            for (int position = length; position < blockSize; position += length) {
+                length = Math.min(blockSize - position, chunk.length);
+                if (!backup.readBlock(key, blockSize, position, length, chunk, 0)) {
+                    log("backup read failed after", position, "of", blockSize, "bytes of block key=" + KeyValue.keyToString(key) + ", zeroing the rest");
+                    BufferPool.writeZeros(outputStream, blockSize - position);
+                    Metrics.counter("bytes.written").add(blockSize);
+                    return position;
+                }
+                outputStream.write(chunk, 0, length);
+            }
 
-            byte[] buffer = new byte[102400];
-            int bytesRead = inputStream.read(buffer, 0, buffer.length);
+            Metrics.counter("bytes.written").add(blockSize);
+            backup.logSpliced(key, blockSize);
+            return blockSize;
+        } finally {
+            BufferPool.release(chunk);
+        }
+    }
 
-            outputStream.write(buffer, 0, bytesRead);
+    // Marks the HDFS blocks overlapping [offset, offset + length) of the file as missing
+    private static void addMissingLocations(FileSystem fs, Path file, long offset, long length, IntervalSet missingRanges) throws IOException {
+        for (BlockLocation loc : fs.getFileBlockLocations(fs.getFileStatus(file), offset, length)) {
+            log("adding range to missing:", IntervalSet.toString(loc.getOffset(), loc.getOffset() + loc.getLength()));
+            missingRanges.add(loc.getOffset(), loc.getOffset() + loc.getLength());
         }
+    }
 
-        double progress = ((((double) Math.round(((double) outputStream.getPos()) * 10000.0 / totalSize))) / 100.0);
-        String currentSize = String.format("%0" + ("" + totalSize).length() + "d", outputStream.getPos());
-        log("progress: " + (currentSize + "/" + totalSize + " bytes, ") + String.format("%.02f", progress) + "%");
+    // Returns the end of the run of blocks starting at first that are not known to be missing
+    // and fit into maxLength bytes together.
+    static int healthyRunEnd(Utils.Index index, int first, IntervalSet.Cursor missing, int maxLength) {
+        long start = index.getOffset(first);
+        int end = first;
 
-        inputStream.close();
-        outputStream.sync();
-        outputStream.close();
+        while (end < index.getLength()) {
+            long blockStart = index.getOffset(end);
+            long blockEnd = blockStart + index.getSize(end);
 
-        log("total number of lost keys:", lostKeysCount, "(" + (((double) lostKeysCount) / ((double) keys.length) * 100) + "%)");
-        log("file with list of lost keys:", new File(missingLogName).getAbsolutePath());
+            if (blockEnd - start > maxLength || missing.intersects(blockStart, blockEnd)) {
+                break;
+            }
+            end++;
+        }
 
-        log("done, verifying the file");
+        return end;
+    }
 
-        log("Input and output files sizes match:", fs.getLength(file) == fs.getLength(output));
+    // Copies blocks [first, end) with a single positional read. The raw bytes of a healthy
+    // block are the same as its rewritten form, only the header is re-framed from the index.
+    // Stops before the first block whose key length does not match the index and returns
+    // the number of copied blocks.
+    static int copyRun(PositionedReadable inputStream, FSDataOutputStream outputStream, Utils.Index index, int first, int end, byte[] buffer) throws IOException {
+        long start = index.getOffset(first);
+        int length = (int) (index.getOffset(end - 1) + index.getSize(end - 1) - start);
 
-        System.exit(0);
+        long readStart = System.nanoTime();
+        inputStream.readFully(start, buffer, 0, length);
+        Metrics.histogram("phase.read").updateSince(readStart);
+        Metrics.counter("bytes.read").add(length);
 
-        /*
-        if (verify(conf, fs, file, output, keys.length, missingRanges)) {
+        int copied = first;
+        int copiedLength = 0;
 
-            System.exit(0);
+        while (copied < end) {
+            byte[] key = index.getKey(copied);
+            int position = (int) (index.getOffset(copied) - start);
 
-            if (verifyChecksums(conf, fs, file, output, missingRanges)) {
-                System.exit(0);
-            } else {
-                System.exit(2);
+            if (Bytes.toInt(buffer, position + C.DATABLOCKMAGIC.length) != key.length) {
+                break;
             }
-        } else {
-            System.exit(2);
+
+            frameBlock(buffer, position, key, Bytes.toInt(buffer, position + C.DATABLOCKMAGIC.length + 4));
+            copiedLength += (int) index.getSize(copied);
+            copied++;
         }
-        */
+
+        long writeStart = System.nanoTime();
+        outputStream.write(buffer, 0, copiedLength);
+        Metrics.histogram("phase.write").updateSince(writeStart);
+        Metrics.counter("bytes.written").add(copiedLength);
+        Metrics.counter("blocks.salvaged").add(copied - first);
+
+        return copied - first;
+    }
+
+    static void frameBlock(byte[] data, int position, byte[] key, int firstRecordDataSize) {
+        System.arraycopy(C.DATABLOCKMAGIC, 0, data, position, C.DATABLOCKMAGIC.length);
+        Bytes.putInt(data, position + C.DATABLOCKMAGIC.length, key.length);
+        Bytes.putInt(data, position + C.DATABLOCKMAGIC.length + 4, firstRecordDataSize);
+        System.arraycopy(key, 0, data, position + BLOCK_HEADER_SIZE, key.length);
+    }
+
+    static void copyTrailer(FSDataInputStream inputStream, FSDataOutputStream outputStream, long dataEnd, long totalSize) throws IOException {
+
+        log("Copying file trailer");
+
+        inputStream.seek(dataEnd);
+
+        byte[] buffer = BufferPool.acquire();
+        try {
+            while (inputStream.getPos() < totalSize) {
+                int bytesRead = inputStream.read(buffer, 0, buffer.length);
+                if (bytesRead < 0) {
+                    throw new EOFException("unexpected end of file while copying the trailer at offset " + inputStream.getPos());
+                }
+
+                outputStream.write(buffer, 0, bytesRead);
+                Metrics.counter("bytes.read").add(bytesRead);
+                Metrics.counter("bytes.written").add(bytesRead);
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+
+        logProgress(outputStream.getPos(), totalSize);
+    }
+
+    // Progress lines are throttled by time, the final line of a file is always written
+    static void logProgress(long position, long totalSize) {
+        if (position < totalSize && !Log.progressDue()) {
+            return;
+        }
+        double progress = ((((double) Math.round(((double) position) * 10000.0 / totalSize))) / 100.0);
+        String currentSize = String.format("%0" + ("" + totalSize).length() + "d", position);
+        log("progress: " + (currentSize + "/" + totalSize + " bytes, ") + String.format("%.02f", progress) + "%");
     }
 
-    static boolean verify(Configuration conf, FileSystem fs, Path input, Path output, int keyCount, RangeSet<Long> missingRanges) {
+    static boolean verify(Configuration conf, FileSystem fs, Path input, Path output, int keyCount, IntervalSet missingRanges) {
         try {
 
             HFile.Reader reader = new HFile.Reader(fs, output, StoreFile.getBlockCache(conf), false);
@@ -288,14 +574,13 @@ public class DataRewrite {
 
         } catch (Exception e) {
 
-            log("VERIFICATION FAILED:");
-            e.printStackTrace();
+            Log.error("VERIFICATION FAILED:", e);
             return false;
 
         }
     }
 
-    static boolean verifyChecksums(Configuration conf, FileSystem fs, Path input, Path output, RangeSet<Long> missingRanges) throws IOException {
+    static boolean verifyChecksums(Configuration conf, FileSystem fs, Path input, Path output, IntervalSet missingRanges) throws IOException {
         FSDataInputStream inputStream = fs.open(input);
         FSDataInputStream outputStream = fs.open(output);
 
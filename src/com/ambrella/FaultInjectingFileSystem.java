@@ -0,0 +1,276 @@
+package com.ambrella;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.*;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.util.Progressable;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Wraps another file system (local by default, or e.g. a MiniDFSCluster through faulty.target)
+// under the faulty:/// scheme and simulates HDFS failures on reads:
+//
+//   faulty.block.size     size of the simulated HDFS blocks, also reported by getFileStatus
+//   faulty.missing.ratio  fraction of blocks without replicas: getFileBlockLocations reports
+//                         them with no hosts and reads overlapping them fail
+//   faulty.error.ratio    probability of an IOException on any read
+//   faulty.slow.ratio     probability of a read being delayed by faulty.slow.ms
+//   faulty.seed           missing blocks are a function of the seed and the file path
+//
+// The last block of every file is never missing, so the HFile trailer and indexes stay readable.
+// Register with register(conf) and open paths like faulty:///tmp/table/region/att/file. The
+// authority of the URI the file system is opened with, faulty://name/..., is kept in the paths
+// it returns, so they resolve back to the same instance.
+public class FaultInjectingFileSystem extends FilterFileSystem {
+
+    public static final String SCHEME = "faulty";
+
+    private URI uri;
+    private URI target;
+
+    private long blockSize;
+    private double missingRatio;
+    private double errorRatio;
+    private double slowRatio;
+    private long slowMs;
+    private long seed;
+
+    private Random random;
+
+    public static void register(Configuration conf) {
+        conf.set("fs." + SCHEME + ".impl", FaultInjectingFileSystem.class.getName());
+    }
+
+    @Override
+    public void initialize(URI name, Configuration conf) throws IOException {
+        setConf(conf);
+        uri = URI.create(SCHEME + "://" + (name.getAuthority() != null ? name.getAuthority() : "") + "/");
+        target = URI.create(conf.get("faulty.target", "file:///"));
+        fs = FileSystem.get(target, conf);
+
+        blockSize = conf.getLong("faulty.block.size", 1024 * 1024);
+        missingRatio = conf.getFloat("faulty.missing.ratio", 0);
+        errorRatio = conf.getFloat("faulty.error.ratio", 0);
+        slowRatio = conf.getFloat("faulty.slow.ratio", 0);
+        slowMs = conf.getLong("faulty.slow.ms", 100);
+        seed = conf.getLong("faulty.seed", 1);
+
+        random = new Random(seed);
+    }
+
+    @Override
+    public URI getUri() {
+        return uri;
+    }
+
+    // Path of the same file in the wrapped file system
+    Path toTarget(Path path) {
+        if (!path.isAbsolute()) {
+            path = new Path(getWorkingDirectory(), path);
+        }
+        return new Path(target.getScheme(), target.getAuthority(), path.toUri().getPath());
+    }
+
+    private Path toFaulty(Path path) {
+        return new Path(uri.getScheme(), uri.getAuthority(), path.toUri().getPath());
+    }
+
+    private FileStatus toFaulty(FileStatus status) {
+        return new FileStatus(status.getLen(), status.isDir(), status.getReplication(),
+                status.isDir() ? status.getBlockSize() : blockSize, status.getModificationTime(), toFaulty(status.getPath()));
+    }
+
+    boolean isMissing(Path path, long block, long fileLength) {
+        if (missingRatio <= 0 || block >= (fileLength - 1) / blockSize) {
+            return false;
+        }
+        long hash = Hashing.murmur3_128().newHasher()
+                .putLong(seed).putString(path.toUri().getPath(), Charsets.UTF_8).putLong(block)
+                .hash().asLong();
+        return (hash >>> 11) * 0x1.0p-53 < missingRatio;
+    }
+
+    @Override
+    public BlockLocation[] getFileBlockLocations(FileStatus file, long start, long len) throws IOException {
+        if (file == null || start < 0 || len < 0 || start >= file.getLen()) {
+            return new BlockLocation[0];
+        }
+
+        List<BlockLocation> locations = new ArrayList<BlockLocation>();
+        long end = Math.min(file.getLen(), start + len);
+
+        for (long block = start / blockSize; block * blockSize < end; ++block) {
+            long offset = block * blockSize;
+            long length = Math.min(blockSize, file.getLen() - offset);
+            if (isMissing(file.getPath(), block, file.getLen())) {
+                locations.add(new BlockLocation(new String[0], new String[0], offset, length));
+            } else {
+                locations.add(new BlockLocation(new String[]{"localhost:50010"}, new String[]{"localhost"}, offset, length));
+            }
+        }
+
+        return locations.toArray(new BlockLocation[locations.size()]);
+    }
+
+    @Override
+    public FSDataInputStream open(Path path, int bufferSize) throws IOException {
+        Path targetPath = toTarget(path);
+        long length = fs.getFileStatus(targetPath).getLen();
+        return new FSDataInputStream(new FaultInjectingInputStream(fs.open(targetPath, bufferSize), toFaulty(targetPath), length));
+    }
+
+    @Override
+    public FSDataOutputStream create(Path path, FsPermission permission, boolean overwrite, int bufferSize, short replication, long blockSize, Progressable progress) throws IOException {
+        return fs.create(toTarget(path), permission, overwrite, bufferSize, replication, blockSize, progress);
+    }
+
+    @Override
+    public FSDataOutputStream append(Path path, int bufferSize, Progressable progress) throws IOException {
+        return fs.append(toTarget(path), bufferSize, progress);
+    }
+
+    @Override
+    public FileStatus getFileStatus(Path path) throws IOException {
+        return toFaulty(fs.getFileStatus(toTarget(path)));
+    }
+
+    @Override
+    public FileStatus[] listStatus(Path path) throws IOException {
+        FileStatus[] statuses = fs.listStatus(toTarget(path));
+        if (statuses == null) {
+            return null;
+        }
+        FileStatus[] result = new FileStatus[statuses.length];
+        for (int i = 0; i < statuses.length; ++i) {
+            result[i] = toFaulty(statuses[i]);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean rename(Path source, Path destination) throws IOException {
+        return fs.rename(toTarget(source), toTarget(destination));
+    }
+
+    @Override
+    public boolean delete(Path path, boolean recursive) throws IOException {
+        return fs.delete(toTarget(path), recursive);
+    }
+
+    @Override
+    public boolean mkdirs(Path path, FsPermission permission) throws IOException {
+        return fs.mkdirs(toTarget(path), permission);
+    }
+
+    @Override
+    public Path getWorkingDirectory() {
+        return toFaulty(fs.getWorkingDirectory());
+    }
+
+    @Override
+    public void setWorkingDirectory(Path path) {
+        fs.setWorkingDirectory(toTarget(path));
+    }
+
+    private class FaultInjectingInputStream extends FSInputStream {
+
+        private final FSDataInputStream in;
+        private final Path path;
+        private final long length;
+
+        FaultInjectingInputStream(FSDataInputStream in, Path path, long length) {
+            this.in = in;
+            this.path = path;
+            this.length = length;
+        }
+
+        private void beforeRead(long position, int len) throws IOException {
+            if (len <= 0 || position >= length) {
+                return;
+            }
+
+            long end = Math.min(length, position + len);
+            for (long block = position / blockSize; block * blockSize < end; ++block) {
+                if (isMissing(path, block, length)) {
+                    throw new IOException("Could not obtain block " + block + " of " + path + " (simulated missing block)");
+                }
+            }
+
+            double errorRoll;
+            double slowRoll;
+            synchronized (random) {
+                errorRoll = random.nextDouble();
+                slowRoll = random.nextDouble();
+            }
+
+            if (errorRoll < errorRatio) {
+                throw new IOException("simulated read error at offset " + position + " of " + path);
+            }
+
+            if (slowRoll < slowRatio) {
+                try {
+                    Thread.sleep(slowMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted during simulated slow read");
+                }
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            beforeRead(in.getPos(), 1);
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int len) throws IOException {
+            beforeRead(in.getPos(), len);
+            return in.read(buffer, offset, len);
+        }
+
+        @Override
+        public int read(long position, byte[] buffer, int offset, int len) throws IOException {
+            beforeRead(position, len);
+            return in.read(position, buffer, offset, len);
+        }
+
+        @Override
+        public void readFully(long position, byte[] buffer, int offset, int len) throws IOException {
+            beforeRead(position, len);
+            in.readFully(position, buffer, offset, len);
+        }
+
+        @Override
+        public void readFully(long position, byte[] buffer) throws IOException {
+            readFully(position, buffer, 0, buffer.length);
+        }
+
+        @Override
+        public void seek(long position) throws IOException {
+            in.seek(position);
+        }
+
+        @Override
+        public long getPos() throws IOException {
+            return in.getPos();
+        }
+
+        @Override
+        public boolean seekToNewSource(long targetPosition) throws IOException {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+}
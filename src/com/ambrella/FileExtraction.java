@@ -4,67 +4,73 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PositionedReadable;
 import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.hbase.KeyValue;
-import org.apache.hadoop.hbase.io.hfile.HFile;
-import org.apache.hadoop.hdfs.DFSClient;
-import org.apache.hadoop.hdfs.protocol.ClientProtocol;
-import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
-import org.apache.hadoop.hdfs.protocol.LocatedBlock;
-import org.apache.hadoop.hdfs.protocol.LocatedBlocks;
-
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.lang.reflect.Field;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import static com.ambrella.Log.log;
 
 public class FileExtraction {
 
     public static final String TAG = FileExtraction.class.getName();
 
-    private static ClientProtocol namenode = null;
-
     final static byte[] DATABLOCKMAGIC =
             {'D', 'A', 'T', 'A', 'B', 'L', 'K', 42};
 
-    public static List<LocatedBlock> findMissingBlocks(String path, long fileLength, Configuration conf) throws IOException {
+    // manifest lines with this prefix are regular expressions, other lines are exact file names
+    static final String PATTERN_PREFIX = "regex:";
 
-        List<LocatedBlock> res = new LinkedList<LocatedBlock>();
-
-        if (namenode == null) {
-            namenode = DFSClient.createNamenode(conf);
-        }
+    static final int DEFAULT_THREADS = 8;
 
-        LocatedBlocks locatedBlocks = namenode.getBlockLocations(path, 0, fileLength);
-        List<LocatedBlock> blocks = locatedBlocks.getLocatedBlocks();
-
-        for (LocatedBlock block : blocks) {
-
-            if (block.isCorrupt()) {
-                res.add(block);
-                continue;
-            }
+    // values are copied to local files in chunks of this size
+    static final int CHUNK_SIZE = 4 * 1024 * 1024;
 
-            DatanodeInfo[] locs = block.getLocations();
+    static class Extraction {
+        final int block;
+        final String fileName;
 
-            if (locs.length == 0) {
-                res.add(block);
-            }
+        Extraction(int block, String fileName) {
+            this.block = block;
+            this.fileName = fileName;
         }
+    }
 
-        return res;
+    private static boolean checkArgs(String[] args) {
+        if (args.length == 3) {
+            return true;
+        }
+        if (args.length != 5 || !args[3].equals("-p")) {
+            return false;
+        }
+        try {
+            return Integer.parseInt(args[4]) > 0;
+        } catch (NumberFormatException e) {
+            return false;
+        }
     }
 
-    public static void main(String[] args) throws IOException, IllegalAccessException, ClassNotFoundException, NoSuchFieldException {
+    public static void main(String[] args) throws IOException, InterruptedException {
+
+        Log.includeTimestamp = false;
 
-        if (args.length != 3) {
+        if (!checkArgs(args)) {
             log("Extract all files from HBase file to local directory:");
-            log("\tINPUT_FILE -d OUTPUT_DIRECTORY");
+            log("\tINPUT_FILE -d OUTPUT_DIRECTORY [-p THREADS]");
             log("Extract a single file from HBase to current directory:");
             log("\tINPUT_FILE -f FILENAME");
+            log("Extract files listed in a manifest to current directory:");
+            log("\tINPUT_FILE -m MANIFEST [-p THREADS]");
+            log("Manifest has one file name per line, lines starting with '" + PATTERN_PREFIX + "' are regular expressions.");
+            log("A file stored more than once is extracted from its first block, which holds the latest version.");
             System.exit(1);
         }
 
@@ -79,11 +85,16 @@ public class FileExtraction {
         conf.set("dfs.block.size", "268435456");
 
         Path file = new Path(args[0]);
-        boolean singleFile = args[1].equals("-f");
+        String mode = args[1];
+        boolean singleFile = mode.equals("-f");
+        boolean manifest = mode.equals("-m");
         String outputFileName = args[2];
         String outputPath = new File(args[2]).getAbsolutePath();
+        int threads = args.length == 5 ? Integer.parseInt(args[4]) : DEFAULT_THREADS;
 
-        if (!singleFile) {
+        File outputDir = new File(".");
+
+        if (!singleFile && !manifest) {
             File dir = new File(outputPath);
 
             if (!dir.exists()) {
@@ -99,108 +110,234 @@ public class FileExtraction {
                 }
             }
 
+            outputDir = dir;
 
-            System.out.println("Reading: " + file + ", writing to dir: " + outputPath);
+            log("Reading: " + file + ", writing to dir: " + outputPath);
+        } else if (singleFile) {
+            log("Reading: " + file + ", looking for file name: " + outputPath);
         } else {
-            System.out.println("Reading: " + file + ", looking for file name: " + outputPath);
+            log("Reading: " + file + ", looking for files listed in: " + outputPath);
         }
 
         FileSystem fs = file.getFileSystem(conf);
 
         if (!fs.exists(file)) {
-            System.err.println("Input file does not exist in HBase: " + file);
+            Log.error("Input file does not exist in HBase: " + file);
             return;
         }
 
-        HFile.Reader reader = new HFile.Reader(fs, file, null, false);
+        long totalSize = fs.getLength(file);
 
-        Map<byte[], byte[]> fileInfo = reader.loadFileInfo();
+        BlockAvailabilityMap availability = BlockAvailabilityMap.build(conf, fs, file);
+        log("Found " + availability.getMissingBlocks().size() + " missing blocks in " + file);
 
-        long totalSize = fs.getLength(file);
+        Utils.Index index = Utils.readHFileIndex(conf, file);
 
-        List<LocatedBlock> missing = findMissingBlocks(file.toString(), fs.getFileStatus(file).getLen(), conf);
-        System.out.println("Found " + missing.size() + " missing blocks in " + file);
+        log("Starting to process total " + totalSize + " bytes");
 
+        Collection<Extraction> extractions;
 
-        Field f = null;
-        try {
-            f = reader.getClass().getDeclaredField("blockIndex");
-        } catch (NoSuchFieldException e) {
-            System.out.println("Error: " + e.getMessage());
-            return;
+        if (singleFile) {
+            extractions = matchFirst(index, Pattern.compile(outputFileName));
+        } else if (manifest) {
+            List<String> names = new ArrayList<String>();
+            List<Pattern> patterns = new ArrayList<Pattern>();
+            readManifest(new File(outputFileName), names, patterns);
+            log("Manifest contains " + names.size() + " file names and " + patterns.size() + " patterns");
+            extractions = matchManifest(index, names, patterns);
+        } else {
+            extractions = matchAll(index);
         }
 
-        f.setAccessible(true);
-        Object blockIndex = f.get(reader);
+        log("Found " + extractions.size() + " files to extract");
 
-        Class<?> c = Class.forName(HFile.class.getName() + "$BlockIndex");
+        int written = extract(fs, file, index, availability, extractions, outputDir, singleFile ? 1 : threads);
 
-        Field bkeys = c.getDeclaredField("blockKeys");
-        bkeys.setAccessible(true);
-        byte[][] keys = (byte[][]) bkeys.get(blockIndex);
+        log("done, extracted " + written + " of " + extractions.size() + " files.");
 
-        Field boffsets = c.getDeclaredField("blockOffsets");
-        boffsets.setAccessible(true);
-        long[] offsets = (long[]) boffsets.get(blockIndex);
+        System.exit(0);
+    }
 
-        Field bsizes = c.getDeclaredField("blockDataSizes");
-        bsizes.setAccessible(true);
-        int[] sizes = (int[]) bsizes.get(blockIndex);
+    static String keyFileName(byte[] key) {
+        return KeyValue.keyToString(key).split("/att:data/")[0];
+    }
 
+    static void readManifest(File manifest, List<String> names, List<Pattern> patterns) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                if (line.startsWith(PATTERN_PREFIX)) {
+                    patterns.add(Pattern.compile(line.substring(PATTERN_PREFIX.length())));
+                } else {
+                    names.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
 
-        log("Starting to process total " + totalSize + " bytes");
-        FSDataInputStream inputStream = fs.open(file);
+    // Every file name, from the first block that starts with it. Cells of a row are sorted newest
+    // first, so in every mode a file stored several times is extracted in its latest version.
+    static Collection<Extraction> matchAll(Utils.Index index) {
+        Map<String, Extraction> extractions = new LinkedHashMap<String, Extraction>();
+        for (int i = 0; i < index.getLength(); ++i) {
+            String fileName = keyFileName(index.getKey(i));
+            if (!extractions.containsKey(fileName)) {
+                extractions.put(fileName, new Extraction(i, fileName));
+            }
+        }
+        return extractions.values();
+    }
 
+    static Collection<Extraction> matchFirst(Utils.Index index, Pattern pattern) {
+        for (int i = 0; i < index.getLength(); ++i) {
+            String fileName = keyFileName(index.getKey(i));
+            if (pattern.matcher(fileName).matches()) {
+                return Collections.singletonList(new Extraction(i, fileName));
+            }
+        }
+        return Collections.emptyList();
+    }
 
-        for (int i = 0; i < keys.length; ++i) {
-            byte[] key = keys[i];
+    // Exact names are looked up with a binary search over the sorted block keys, patterns need
+    // a single pass over all keys.
+    static Collection<Extraction> matchManifest(Utils.Index index, List<String> names, List<Pattern> patterns) {
+        Map<String, Extraction> extractions = new LinkedHashMap<String, Extraction>();
 
-            String keyFileName = KeyValue.keyToString(key).split("/att:data/")[0];
+        KeyValue.KeyComparator comparator = new KeyValue.KeyComparator();
+
+        for (String name : names) {
+            byte[] row = Bytes.toBytesBinary(name);
+            int block = findFirstBlockOfRow(index, row, comparator);
+            if (block < 0) {
+                log("Not found: " + name);
+                continue;
+            }
+            extractions.put(name, new Extraction(block, name));
+        }
 
-            if (singleFile) {
-                if (!keyFileName.matches(outputFileName)) {
+        if (!patterns.isEmpty()) {
+            for (int i = 0; i < index.getLength(); ++i) {
+                String fileName = keyFileName(index.getKey(i));
+                if (extractions.containsKey(fileName)) {
                     continue;
                 }
+                for (Pattern pattern : patterns) {
+                    if (pattern.matcher(fileName).matches()) {
+                        extractions.put(fileName, new Extraction(i, fileName));
+                        break;
+                    }
+                }
+            }
+        }
+
+        return extractions.values();
+    }
+
+    // Returns the first block that starts with the row, or -1 if there is none
+    static int findFirstBlockOfRow(Utils.Index index, byte[] row, KeyValue.KeyComparator comparator) {
+        byte[] searchKey = KeyValue.createFirstOnRow(row).getKey();
+
+        int low = 0;
+        int high = (int) index.getLength();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (comparator.compare(index.getKey(middle), searchKey) < 0) {
+                low = middle + 1;
             } else {
-                log("Found file with matching key: " + outputPath);
+                high = middle;
             }
+        }
 
-            inputStream.seek(offsets[i]);
-            inputStream.skipBytes(DATABLOCKMAGIC.length);
-            int keyLength = inputStream.readInt();
-            int valueLength = inputStream.readInt();
-            inputStream.skipBytes(keyLength);
-            byte[] value = new byte[valueLength];
-            inputStream.readFully(value);
+        if (low == index.getLength()) {
+            return -1;
+        }
 
-            String outputFilePath = (singleFile ? "./" : (outputPath + "/")) + keyFileName;
+        byte[] key = index.getKey(low);
+        short rowLength = Bytes.toShort(key, 0);
 
-            FileOutputStream out = new FileOutputStream(outputFilePath);
-            out.write(value);
-            out.close();
-            log("Wrote file: " + new Path(outputFilePath).getName());
+        return Bytes.compareTo(key, Bytes.SIZEOF_SHORT, rowLength, row, 0, row.length) == 0 ? low : -1;
+    }
 
-            double progress = ((offsets[i] + sizes[i]) * 10000.0 / totalSize) / 100.0;
+    // Writes the first value of every matched block to its own local file, returns the number of written files
+    static int extract(FileSystem fs, Path file, final Utils.Index index, final BlockAvailabilityMap availability, final Collection<Extraction> extractions, final File outputDir, int threads) throws IOException, InterruptedException {
 
-            if (singleFile) {
-                break;
-            }
+        final FSDataInputStream inputStream = fs.open(file);
+        final AtomicInteger written = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+
+        for (final Extraction extraction : extractions) {
+            futures.add(executor.submit(new Callable<Void>() {
+                public Void call() throws IOException {
+                    long offset = index.getOffset(extraction.block);
+
+                    if (!availability.isAvailable(offset, offset + index.getSize(extraction.block))) {
+                        log("Skipping file in missing block: " + extraction.fileName);
+                        return null;
+                    }
 
-            log(String.format("progress: %.02f%%", progress));
+                    File outputFile = new File(outputDir, extraction.fileName);
+                    writeValue(inputStream, offset, outputFile);
 
+                    log("Wrote file: " + outputFile.getName() + " (" + written.incrementAndGet() + " of " + extractions.size() + ")");
+                    return null;
+                }
+            }));
         }
 
-        inputStream.close();
+        executor.shutdown();
 
-        log("done.");
+        try {
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    log("Failed to extract file:", e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            inputStream.close();
+        }
 
-        System.exit(0);
+        return written.get();
     }
 
-    static void log(Object... objects) {
-        for (Object object : objects) {
-            System.out.print(object.toString() + " ");
+    // Copies the value of the first record of the block at offset to a local file in fixed size chunks
+    private static void writeValue(PositionedReadable inputStream, long offset, File outputFile) throws IOException {
+        byte[] header = new byte[DATABLOCKMAGIC.length + 4 + 4];
+        inputStream.readFully(offset, header, 0, header.length);
+        int keyLength = Bytes.toInt(header, DATABLOCKMAGIC.length);
+        int valueLength = Bytes.toInt(header, DATABLOCKMAGIC.length + 4);
+
+        long position = offset + header.length + keyLength;
+        byte[] chunk = new byte[Math.min(CHUNK_SIZE, valueLength)];
+
+        FileChannel channel = new FileOutputStream(outputFile).getChannel();
+        try {
+            long remaining = valueLength;
+            while (remaining > 0) {
+                int length = (int) Math.min(chunk.length, remaining);
+                inputStream.readFully(position, chunk, 0, length);
+
+                ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, length);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+
+                position += length;
+                remaining -= length;
+            }
+        } finally {
+            channel.close();
         }
-        System.out.println();
     }
 }
@@ -1,14 +1,10 @@
 package com.ambrella;
 
-import com.google.common.collect.Range;
-import com.google.common.collect.RangeSet;
-import com.google.common.collect.TreeRangeSet;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.BlockLocation;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.hbase.KeyValue;
 
 import java.io.IOException;
 
@@ -30,8 +26,7 @@ public class FileKeysReader {
         try {
             readKeys(conf, file);
         } catch (Exception e) {
-            log("UNEXPECTED EXCEPTION:");
-            e.printStackTrace();
+            Log.error("UNEXPECTED EXCEPTION:", e);
             System.exit(2);
         }
 
@@ -44,39 +39,35 @@ public class FileKeysReader {
         FSDataInputStream stream = fs.open(file);
 
         Utils.Index index = Utils.readHFileIndex(conf, file);
-        int lastIndex = (int) (index.getLength() - 1);
 
-        long dataEnd = index.getOffset(lastIndex) + index.getSize(lastIndex);
+        IntervalSet missingRanges = BlockAvailabilityMap.build(conf, fs, file).getMissingRanges();
+        IntervalSet.Cursor missing = missingRanges.cursor();
 
-        RangeSet<Long> missingRanges = TreeRangeSet.create();
+        for (int i = 0; i < index.getLength(); i++) {
 
+            long offset = index.getOffset(i);
+            long blockSize = index.getSize(i);
 
-        outer:
-        for(int i = 0; stream.getPos() < dataEnd; i++) {
-
-            BlockLocation[] locations = fs.getFileBlockLocations(fs.getFileStatus(file), stream.getPos(), stream.getPos() + 8);
-
-            for (BlockLocation loc : locations) {
-                Range<Long> range = Range.<Long>closed(loc.getOffset(), loc.getOffset() + loc.getLength());
-                if (!missingRanges.subRangeSet(range).isEmpty()) {
-                    log("skipping input block in non-readable range:", range);
-                    continue outer;
-                }
+            if (missing.intersects(offset, offset + blockSize)) {
+                log("skipping input block in non-readable range:", IntervalSet.toString(offset, offset + blockSize));
+                continue;
             }
 
             try {
 
-                HFileDataBlock dataBlock = HFileDataBlock.read(stream, (int) index.getSize(i));
+                stream.seek(offset);
+                HFileDataBlock dataBlock = HFileDataBlock.read(stream, (int) blockSize);
 
-                for (HFileDataBlockRecord record: dataBlock.getRecords()) {
-                    log("index=" + i + "; key=" + KeyValue.keyToString(record.key));
+                HFileDataBlock.RecordCursor cursor = dataBlock.cursor();
+                while (cursor.next()) {
+                    log("index=" + i + "; key=" + cursor.getKeyString());
                 }
 
             } catch(IOException e) {
+                BlockLocation[] locations = fs.getFileBlockLocations(fs.getFileStatus(file), offset, blockSize);
                 for (BlockLocation loc : locations) {
-                    Range<Long> range = Range.<Long>closed(loc.getOffset(), loc.getOffset() + loc.getLength());
-                    missingRanges.add(range);
-                    log("adding missing byte range:", range);
+                    missingRanges.add(loc.getOffset(), loc.getOffset() + loc.getLength());
+                    log("adding missing byte range:", IntervalSet.toString(loc.getOffset(), loc.getOffset() + loc.getLength()));
                 }
             }
         }
@@ -10,8 +10,11 @@ import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.hbase.util.Pair;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.*;
 
 import static com.ambrella.Log.log;
 import static com.ambrella.Utils.exit;
@@ -19,7 +22,35 @@ import static com.ambrella.Utils.exit;
 // Parses region data files and generates .regioninfo
 public class GenerateRegionInfo {
 
-    static final String[] flags = {"-f", "-n", "-r", "-t"};
+    static final String[] flags = {"-f", "-n", "-r", "-t", "-a"};
+
+    // bytes read from the start of a store file to get its first key, enough for most keys
+    static final int FIRST_RECORD_READ_SIZE = 4096;
+
+    static class Options {
+        boolean forceOverwrite = false;
+        boolean dontWrite = false;
+        boolean renameDir = false;
+        boolean useCurrentTime = false;
+    }
+
+    // Outcome of one region in table mode
+    enum RegionResult {
+        GENERATED, SKIPPED, FAILED
+    }
+
+    // First key, last key and the timestamp of the first key of a store file
+    static class StoreFileKeys {
+        final byte[] firstKey;
+        final byte[] lastKey;
+        final long firstTimestamp;
+
+        StoreFileKeys(byte[] firstKey, byte[] lastKey, long firstTimestamp) {
+            this.firstKey = firstKey;
+            this.lastKey = lastKey;
+            this.firstTimestamp = firstTimestamp;
+        }
+    }
 
     private static boolean checkArgs(String[] args) {
 
@@ -40,60 +71,140 @@ public class GenerateRegionInfo {
         return true;
     }
 
-    public static void main(String[] args) throws IOException, IllegalAccessException, NoSuchFieldException, ClassNotFoundException {
+    public static void main(String[] args) throws IOException, InterruptedException {
 
         if (!checkArgs(args)) {
             Log.includeTimestamp = false;
-            log("arguments: REGION [-f] [-n]");
+            log("arguments: REGION [-f] [-n] [-r] [-t] [-a]");
             log("REGION should be an HDFS path of HBase region directory");
             log("Options:");
             log("\t -f \t force .regioninfo overwrite");
             log("\t -n \t do not write any changes");
             log("\t -r \t rename region directory if region name changes");
             log("\t -t \t use current time for region id instead of oldest key timestamp");
+            log("\t -a \t REGION is a table directory, process all of its regions");
+            log("Set -Dhbaserecovery.regioninfo.threads=N to process N regions at the same time with -a (default 16).");
             exit(1);
         }
 
-        Path regionDir = new Path(args[0]);
+        Path dir = new Path(args[0]);
 
         String[] otherArgs = Arrays.copyOfRange(args, 1, args.length);
 
-        boolean forceOverwrite = false;
-        boolean dontWrite = false;
-        boolean renameDir = false;
-        boolean useCurrentTime = false;
+        Options options = new Options();
+        boolean allRegions = false;
         for (String a : otherArgs) {
             if (a.equals("-f")) {
                 log("Got -f argument: will force .regioninfo overwrite");
-                forceOverwrite = true;
+                options.forceOverwrite = true;
             } else if (a.equals("-n")) {
                 log("Got -n argument: will not actually write any changes");
-                dontWrite = true;
+                options.dontWrite = true;
             } else if (a.equals("-r")) {
                 log("Got -r argument: will rename region directory");
-                renameDir = true;
+                options.renameDir = true;
             } else if (a.equals("-t")) {
-                log("Got -r argument: will use current time for region timestamp");
-                useCurrentTime = true;
+                log("Got -t argument: will use current time for region timestamp");
+                options.useCurrentTime = true;
+            } else if (a.equals("-a")) {
+                log("Got -a argument: will process all regions of the table");
+                allRegions = true;
             }
         }
 
         Configuration conf = Config.Hadoop.makeConfig();
 
-        FileSystem fs = regionDir.getFileSystem(conf);
+        FileSystem fs = dir.getFileSystem(conf);
 
-        if (!fs.exists(regionDir) || !fs.getFileStatus(regionDir).isDir()) {
-            log("ERROR: region directory does not exist!");
+        if (!fs.exists(dir) || !fs.getFileStatus(dir).isDir()) {
+            Log.error((allRegions ? "table" : "region") + " directory does not exist!");
             exit(1);
         }
 
+        if (allRegions) {
+            exit(generateTable(fs, dir, options) ? 0 : 2);
+        }
+
+        boolean generated = generate(fs, dir, options);
+
+        if (generated) {
+            log("done.");
+        }
+
+        exit(generated ? 0 : 1);
+    }
+
+    // Generates .regioninfo of every region of the table concurrently
+    static boolean generateTable(final FileSystem fs, Path tableDir, final Options options) throws IOException, InterruptedException {
+
+        List<Path> regionDirs = new ArrayList<Path>();
+        for (FileStatus status : fs.listStatus(tableDir)) {
+            if (status.isDir() && !status.getPath().getName().startsWith(".")) {
+                regionDirs.add(status.getPath());
+            }
+        }
+
+        log("processing", regionDirs.size(), "regions of table", tableDir.getName());
+
+        ExecutorService executor = Executors.newFixedThreadPool(Config.RegionInfo.TABLE_THREADS);
+        List<Future<RegionResult>> results = new ArrayList<Future<RegionResult>>();
+
+        for (final Path regionDir : regionDirs) {
+            results.add(executor.submit(new Callable<RegionResult>() {
+                public RegionResult call() {
+                    try {
+                        // an existing .regioninfo is left alone without -f, that is not a failure
+                        if (!options.forceOverwrite && fs.exists(new Path(regionDir, C.REGION_INFO_FILE_NAME))) {
+                            log(".regioninfo already exists, skipping region", regionDir);
+                            return RegionResult.SKIPPED;
+                        }
+                        return generate(fs, regionDir, options) ? RegionResult.GENERATED : RegionResult.FAILED;
+                    } catch (IOException e) {
+                        Log.error("failed to generate .regioninfo for region", regionDir, e);
+                        return RegionResult.FAILED;
+                    }
+                }
+            }));
+        }
+
+        executor.shutdown();
+
+        int generated = 0;
+        int skipped = 0;
+        int failed = 0;
+        for (int i = 0; i < results.size(); ++i) {
+            try {
+                switch (results.get(i).get()) {
+                    case GENERATED:
+                        generated += 1;
+                        break;
+                    case SKIPPED:
+                        skipped += 1;
+                        break;
+                    default:
+                        log("FAILED region:", regionDirs.get(i));
+                        failed += 1;
+                }
+            } catch (ExecutionException e) {
+                log("FAILED region:", regionDirs.get(i), e.getCause());
+                failed += 1;
+            }
+        }
+
+        log("done,", generated, "generated,", skipped, "skipped (.regioninfo already exists),", failed, "failed of", regionDirs.size(), "regions");
+
+        return failed == 0;
+    }
+
+    static boolean generate(FileSystem fs, Path regionDir, Options options) throws IOException {
+
         Path regionInfoFile = new Path(regionDir, C.REGION_INFO_FILE_NAME);
 
         if (fs.exists(regionInfoFile)) {
             log(".regioninfo file already exists at path", regionInfoFile);
-            if (!forceOverwrite) {
-                exit(1);
-            } else if (!dontWrite) {
+            if (!options.forceOverwrite) {
+                return false;
+            } else if (!options.dontWrite) {
                 Path copyPath = new Path("/tmp/.regioninfo-" + regionDir.getName() + ".original");
                 log("creating .regioninfo backup at", copyPath);
                 FSDataOutputStream copy = fs.create(copyPath);
@@ -111,11 +222,22 @@ public class GenerateRegionInfo {
         Path attDir = new Path(regionDir, "att");
 
         if (!fs.exists(attDir) || !fs.getFileStatus(attDir).isDir()) {
-            log("ERROR: att directory does not exist in this region");
-            exit(1);
+            Log.error("att directory does not exist in region", regionDir);
+            return false;
+        }
+
+        List<StoreFileKeys> storeFiles = new ArrayList<StoreFileKeys>();
+        for (FileStatus blockFileStatus : fs.listStatus(attDir)) {
+            log("checking region block file:", blockFileStatus.getPath());
+            storeFiles.add(readStoreFileKeys(fs, blockFileStatus));
         }
 
-        Pair<byte[], byte[]> range = getRegionKeyRange(conf, fs, attDir);
+        if (storeFiles.isEmpty()) {
+            Log.error("no store files in region", regionDir);
+            return false;
+        }
+
+        Pair<byte[], byte[]> range = getRegionKeyRange(storeFiles);
         byte[] minKey = range.getFirst();
         byte[] maxKey = range.getSecond();
 
@@ -126,10 +248,10 @@ public class GenerateRegionInfo {
         tableDescriptor.addFamily(new HColumnDescriptor("att"));
 
         long regionDate;
-        if (useCurrentTime) {
+        if (options.useCurrentTime) {
             regionDate = new Date().getTime();
         } else {
-            regionDate = getRegionDate(conf, fs, attDir);
+            regionDate = getRegionDate(storeFiles);
         }
 
         log("region date:", regionDate, "(" + new Date(regionDate).toString() + ")");
@@ -143,14 +265,14 @@ public class GenerateRegionInfo {
 
         log("region name:", regionInfo.getEncodedName());
 
-        if (!dontWrite) {
+        if (!options.dontWrite) {
             FSDataOutputStream out = fs.create(regionInfoFile);
             regionInfo.write(out);
             out.sync();
             out.close();
             log("created .regioninfo:", regionInfoFile);
 
-            if (renameDir) {
+            if (options.renameDir) {
                 Path newRegionDir = new Path(regionDir.getParent(), regionInfo.getEncodedName());
 
                 if (!newRegionDir.equals(regionDir)) {
@@ -160,60 +282,79 @@ public class GenerateRegionInfo {
             }
         }
 
-        log("done.");
+        return true;
+    }
+
+    // Reads the trailer, FileInfo.LASTKEY and the header of the first record of a store file,
+    // without loading its block index or its first data block.
+    static StoreFileKeys readStoreFileKeys(FileSystem fs, FileStatus status) throws IOException {
+        FSDataInputStream stream = fs.open(status.getPath());
+
+        try {
+            Utils.FixedFileTrailer trailer = HFileTail.readTrailer(stream, status.getLen());
+            Utils.FileInfo fileInfo = HFileTail.readFileInfo(stream, trailer);
+            byte[] lastKey = fileInfo.get(Utils.FileInfo.LASTKEY);
+
+            int headerSize = DataRewrite.BLOCK_HEADER_SIZE;
+            byte[] buffer = new byte[(int) Math.min(FIRST_RECORD_READ_SIZE, trailer.fileinfoOffset)];
+            stream.readFully(0, buffer, 0, buffer.length);
 
-        exit(0);
+            if (buffer.length < headerSize || Bytes.compareTo(buffer, 0, C.DATABLOCKMAGIC.length, C.DATABLOCKMAGIC, 0, C.DATABLOCKMAGIC.length) != 0) {
+                throw new IOException("first data block does not start with DATABLOCKMAGIC: " + status.getPath());
+            }
+
+            int keyLength = Bytes.toInt(buffer, C.DATABLOCKMAGIC.length);
+            byte[] firstKey = new byte[keyLength];
+
+            if (headerSize + keyLength <= buffer.length) {
+                System.arraycopy(buffer, headerSize, firstKey, 0, keyLength);
+            } else {
+                stream.readFully(headerSize, firstKey, 0, keyLength);
+            }
+
+            long timestamp = Bytes.toLong(firstKey, firstKey.length - KeyValue.TIMESTAMP_TYPE_SIZE);
+
+            log("block first key:", KeyValue.keyToString(firstKey));
+            log("block last key:", KeyValue.keyToString(lastKey));
+
+            return new StoreFileKeys(firstKey, lastKey, timestamp);
+
+        } finally {
+            stream.close();
+        }
     }
 
-    private static long getRegionDate(Configuration conf, FileSystem fs, Path attDir) throws IOException, IllegalAccessException, NoSuchFieldException, ClassNotFoundException {
+    private static long getRegionDate(List<StoreFileKeys> storeFiles) {
 
         long earliestTime = new Date().getTime();
 
-        for (FileStatus fileStatus : fs.listStatus(attDir)) {
-            Utils.Index index = Utils.readHFileIndex(conf, fileStatus.getPath());
-            FSDataInputStream stream = fs.open(fileStatus.getPath());
-            HFileDataBlock dataBlock = HFileDataBlock.read(stream, (int) index.getSize(0));
-            KeyValue kv = new KeyValue(dataBlock.data);
-            long time = kv.getTimestamp();
-            if (time < earliestTime) {
-                earliestTime = time;
+        for (StoreFileKeys storeFile : storeFiles) {
+            if (storeFile.firstTimestamp < earliestTime) {
+                earliestTime = storeFile.firstTimestamp;
             }
         }
 
         return earliestTime;
     }
 
-    private static Pair<byte[], byte[]> getRegionKeyRange(Configuration conf, FileSystem fs, Path attDir) throws IOException, IllegalAccessException, ClassNotFoundException, NoSuchFieldException {
+    private static Pair<byte[], byte[]> getRegionKeyRange(List<StoreFileKeys> storeFiles) {
         KeyValue.KeyComparator keyComparator = new KeyValue.KeyComparator();
 
         byte[] minKey = null;
         byte[] maxKey = null;
 
-        for (FileStatus blockFileStatus : fs.listStatus(attDir)) {
-
-            Path blockFilePath = blockFileStatus.getPath();
-
-            log("checking region block file:", blockFilePath);
-
-            Utils.Index index = Utils.readHFileIndex(conf, blockFilePath);
-
-            byte[] blockFirstKey = index.getKey(0);
-
-            byte[] blockLastKey = readTrailerLastKey(fs, blockFileStatus, index);
-
-            log("block first key:", KeyValue.keyToString(blockFirstKey));
-            log("block last key:", KeyValue.keyToString(blockLastKey));
+        for (StoreFileKeys storeFile : storeFiles) {
 
             if (minKey == null) {
-                minKey = blockFirstKey;
-            } else if (keyComparator.compare(minKey, blockFirstKey) > 0) {
-                minKey = blockFirstKey;
+                minKey = storeFile.firstKey;
+            } else if (keyComparator.compare(minKey, storeFile.firstKey) > 0) {
+                minKey = storeFile.firstKey;
             }
 
             if (maxKey == null) {
-                maxKey = blockLastKey;
-            } else if (keyComparator.compare(maxKey, blockLastKey) < 0) {
-                maxKey = blockLastKey;
+                maxKey = storeFile.lastKey;
+            } else if (keyComparator.compare(maxKey, storeFile.lastKey) < 0) {
+                maxKey = storeFile.lastKey;
             }
 
         }
@@ -221,18 +362,4 @@ public class GenerateRegionInfo {
         return Pair.newPair(minKey, maxKey);
     }
 
-    private static byte[] readTrailerLastKey(FileSystem fs, FileStatus status, Utils.Index index) throws IOException {
-        FSDataInputStream stream = fs.open(status.getPath());
-
-        Utils.FixedFileTrailer trailer = new Utils.FixedFileTrailer();
-        stream.seek(status.getLen() - Utils.FixedFileTrailer.trailerSize());
-        trailer.deserialize(stream);
-
-        stream.seek(trailer.fileinfoOffset);
-        Utils.FileInfo fileInfo = new Utils.FileInfo();
-        fileInfo.readFields(stream);
-
-        return fileInfo.get(Utils.FileInfo.LASTKEY);
-    }
-
 }
@@ -2,6 +2,10 @@ package com.ambrella;
 
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.PositionedReadable;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.RawComparator;
 
 import java.io.IOException;
 import java.util.Arrays;
@@ -9,24 +13,43 @@ import java.util.List;
 
 public class HFileDataBlock {
 
+    // key length and value length preceding every record
+    static final int RECORD_HEADER_SIZE = 4 + 4;
+
+    // records start after the block magic
+    static final int RECORDS_START = C.DATABLOCKMAGIC.length;
+
+    // the whole block including its magic, read with a single allocation
     public byte[] data;
 
     private List<HFileDataBlockRecord> records = null;
 
+    // start of every record in data, built on first random access
+    private int[] recordOffsets = null;
+
     public static HFileDataBlock read(FSDataInputStream stream, int dataBlockSize) throws IOException {
         HFileDataBlock block = new HFileDataBlock();
-        byte[] magic = new byte[C.DATABLOCKMAGIC.length];
-        stream.readFully(magic);
-        if (!Arrays.equals(magic, C.DATABLOCKMAGIC)) {
+        block.data = new byte[dataBlockSize];
+        stream.readFully(block.data, 0, C.DATABLOCKMAGIC.length);
+        if (Bytes.compareTo(block.data, 0, C.DATABLOCKMAGIC.length, C.DATABLOCKMAGIC, 0, C.DATABLOCKMAGIC.length) != 0) {
             throw new IOException("Invalid datablock magic");
         }
-        block.data = new byte[dataBlockSize - C.DATABLOCKMAGIC.length];
-        stream.readFully(block.data);
+        stream.readFully(block.data, C.DATABLOCKMAGIC.length, dataBlockSize - C.DATABLOCKMAGIC.length);
+        return block;
+    }
+
+    // Reads the block with a single positional read, the stream position is not changed
+    public static HFileDataBlock read(PositionedReadable stream, long offset, int dataBlockSize) throws IOException {
+        HFileDataBlock block = new HFileDataBlock();
+        block.data = new byte[dataBlockSize];
+        stream.readFully(offset, block.data, 0, dataBlockSize);
+        if (Bytes.compareTo(block.data, 0, C.DATABLOCKMAGIC.length, C.DATABLOCKMAGIC, 0, C.DATABLOCKMAGIC.length) != 0) {
+            throw new IOException("Invalid datablock magic at offset " + offset);
+        }
         return block;
     }
 
     public void write(FSDataOutputStream stream) throws IOException {
-        stream.write(C.DATABLOCKMAGIC);
         stream.write(data);
     }
 
@@ -38,4 +61,137 @@ public class HFileDataBlock {
         return this.records;
     }
 
+    // Walks the records in place, the returned cursor is positioned before the first record
+    public RecordCursor cursor() {
+        return new RecordCursor();
+    }
+
+    public synchronized int getRecordCount() throws IOException {
+        return getRecordOffsets().length;
+    }
+
+    public int getKeyOffset(int record) throws IOException {
+        return getRecordOffsets()[record] + RECORD_HEADER_SIZE;
+    }
+
+    public int getKeyLength(int record) throws IOException {
+        return Bytes.toInt(data, getRecordOffsets()[record]);
+    }
+
+    public int getValueOffset(int record) throws IOException {
+        return getKeyOffset(record) + getKeyLength(record);
+    }
+
+    public int getValueLength(int record) throws IOException {
+        return Bytes.toInt(data, getRecordOffsets()[record] + 4);
+    }
+
+    // Returns the index of the last record with a key less than or equal to the given key,
+    // or -1 if all keys of the block are greater.
+    public int findRecord(byte[] key, int offset, int length, RawComparator<byte[]> comparator) throws IOException {
+        int low = 0;
+        int high = getRecordCount() - 1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int cmp = comparator.compare(data, getKeyOffset(middle), getKeyLength(middle), key, offset, length);
+
+            if (cmp < 0) {
+                low = middle + 1;
+            } else if (cmp > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+
+        return low - 1;
+    }
+
+    synchronized int[] getRecordOffsets() throws IOException {
+        if (this.recordOffsets == null) {
+            int count = 0;
+            int[] offsets = new int[16];
+
+            RecordCursor cursor = cursor();
+            while (cursor.next()) {
+                if (count == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, count * 2);
+                }
+                offsets[count++] = cursor.getRecordOffset();
+            }
+
+            this.recordOffsets = Arrays.copyOf(offsets, count);
+        }
+
+        return this.recordOffsets;
+    }
+
+    // Flyweight over the records of the block, exposes offsets into data instead of copies
+    public class RecordCursor {
+
+        private int position = -1;
+        private int next = RECORDS_START;
+
+        public boolean next() throws IOException {
+            if (next >= data.length) {
+                return false;
+            }
+
+            if (next + RECORD_HEADER_SIZE > data.length) {
+                throw new IOException("truncated record header at block offset " + next);
+            }
+
+            int keyLength = Bytes.toInt(data, next);
+            int valueLength = Bytes.toInt(data, next + 4);
+            long end = (long) next + RECORD_HEADER_SIZE + keyLength + valueLength;
+
+            if (keyLength < 0 || valueLength < 0 || end > data.length) {
+                throw new IOException("invalid record lengths at block offset " + next + ": key=" + keyLength + ", value=" + valueLength);
+            }
+
+            position = next;
+            next = (int) end;
+            return true;
+        }
+
+        public void reset() {
+            position = -1;
+            next = RECORDS_START;
+        }
+
+        public byte[] getBuffer() {
+            return data;
+        }
+
+        public int getRecordOffset() {
+            return position;
+        }
+
+        public int getKeyOffset() {
+            return position + RECORD_HEADER_SIZE;
+        }
+
+        public int getKeyLength() {
+            return Bytes.toInt(data, position);
+        }
+
+        public int getValueOffset() {
+            return getKeyOffset() + getKeyLength();
+        }
+
+        public int getValueLength() {
+            return Bytes.toInt(data, position + 4);
+        }
+
+        // Records have the same layout as KeyValue, so no data is copied
+        public KeyValue getKeyValue() {
+            return new KeyValue(data, position, next - position);
+        }
+
+        public String getKeyString() {
+            return KeyValue.keyToString(data, getKeyOffset(), getKeyLength());
+        }
+    }
+
 }
@@ -1,9 +1,8 @@
 package com.ambrella;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class HFileDataBlockRecord {
@@ -13,28 +12,18 @@ public class HFileDataBlockRecord {
 
     public static List<HFileDataBlockRecord> splitRecords(HFileDataBlock dataBlock) throws IOException {
 
-        List<HFileDataBlockRecord> dataBlockRecordList = new LinkedList<HFileDataBlockRecord>();
+        List<HFileDataBlockRecord> dataBlockRecordList = new ArrayList<HFileDataBlockRecord>();
 
-        DataInputStream stream = new DataInputStream(new ByteArrayInputStream(dataBlock.data));
+        HFileDataBlock.RecordCursor cursor = dataBlock.cursor();
 
-        long dataBlockPosition = 0;
-
-        while (dataBlockPosition < dataBlock.data.length) {
-
-            int keySize = stream.readInt();
-            int dataSize = stream.readInt();
+        while (cursor.next()) {
 
             HFileDataBlockRecord record = new HFileDataBlockRecord();
 
-            record.key = new byte[keySize];
-            record.data = new byte[dataSize];
-
-            stream.readFully(record.key);
-            stream.readFully(record.data);
+            record.key = Arrays.copyOfRange(dataBlock.data, cursor.getKeyOffset(), cursor.getKeyOffset() + cursor.getKeyLength());
+            record.data = Arrays.copyOfRange(dataBlock.data, cursor.getValueOffset(), cursor.getValueOffset() + cursor.getValueLength());
 
             dataBlockRecordList.add(record);
-
-            dataBlockPosition += 4 + 4 + keySize + dataSize;
         }
 
         return dataBlockRecordList;
@@ -0,0 +1,160 @@
+package com.ambrella;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PositionedReadable;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+// Everything an HFile v1 keeps after its data and meta blocks: file info, data block index,
+// meta block index and the fixed trailer. Read with two ranged reads, the trailer and then
+// exactly [fileinfoOffset, trailer), like HFile.Reader does, so a dead HDFS block under the data
+// or meta blocks never fails the index load. Decoded without an HFile.Reader, so no block cache
+// is allocated and no private HBase fields are accessed.
+public class HFileTail {
+
+    static final byte[] INDEXBLOCKMAGIC = {'I', 'D', 'X', 'B', 'L', 'K', 41, 43};
+
+    final Utils.FixedFileTrailer trailer;
+    final Utils.FileInfo fileInfo;
+    final Utils.Index dataIndex;
+    // keys are the meta block names
+    final Utils.Index metaIndex;
+
+    private HFileTail(Utils.FixedFileTrailer trailer, Utils.FileInfo fileInfo, Utils.Index dataIndex, Utils.Index metaIndex) {
+        this.trailer = trailer;
+        this.fileInfo = fileInfo;
+        this.dataIndex = dataIndex;
+        this.metaIndex = metaIndex;
+    }
+
+    public static HFileTail read(FileSystem fs, Path path) throws IOException {
+        long length = fs.getFileStatus(path).getLen();
+        int trailerSize = Utils.FixedFileTrailer.trailerSize();
+
+        if (length < trailerSize) {
+            throw new IOException("File is too short to be an HFile: " + path + " (" + length + " bytes)");
+        }
+
+        FSDataInputStream stream = fs.open(path);
+
+        try {
+            Utils.FixedFileTrailer trailer = readTrailer(stream, length);
+
+            if (trailer.fileinfoOffset < 0 || trailer.fileinfoOffset > length - trailerSize) {
+                throw new IOException("Invalid file info offset in trailer of " + path + ": " + trailer);
+            }
+
+            long tailStart = trailer.fileinfoOffset;
+            byte[] tail = new byte[(int) (length - trailerSize - tailStart)];
+            stream.readFully(tailStart, tail, 0, tail.length);
+
+            Utils.FileInfo fileInfo = new Utils.FileInfo();
+            int fileInfoStart = (int) (trailer.fileinfoOffset - tailStart);
+            fileInfo.readFields(new DataInputStream(new ByteArrayInputStream(tail, fileInfoStart, tail.length - fileInfoStart)));
+
+            Utils.Index dataIndex = decodeIndex(tail, (int) (trailer.dataIndexOffset - tailStart), trailer.dataIndexCount);
+
+            Utils.Index metaIndex = trailer.metaIndexCount == 0 ? decodeIndex(tail, 0, 0)
+                    : decodeIndex(tail, (int) (trailer.metaIndexOffset - tailStart), trailer.metaIndexCount);
+
+            return new HFileTail(trailer, fileInfo, dataIndex, metaIndex);
+
+        } finally {
+            stream.close();
+        }
+    }
+
+    static Utils.FixedFileTrailer readTrailer(PositionedReadable stream, long length) throws IOException {
+        int trailerSize = Utils.FixedFileTrailer.trailerSize();
+        byte[] buffer = new byte[trailerSize];
+        stream.readFully(length - trailerSize, buffer, 0, trailerSize);
+
+        Utils.FixedFileTrailer trailer = new Utils.FixedFileTrailer();
+        trailer.deserialize(new DataInputStream(new ByteArrayInputStream(buffer)));
+        return trailer;
+    }
+
+    // Reads only the file info, which is stored right before the data block index
+    static Utils.FileInfo readFileInfo(PositionedReadable stream, Utils.FixedFileTrailer trailer) throws IOException {
+        byte[] buffer = new byte[(int) (trailer.dataIndexOffset - trailer.fileinfoOffset)];
+        stream.readFully(trailer.fileinfoOffset, buffer, 0, buffer.length);
+
+        Utils.FileInfo fileInfo = new Utils.FileInfo();
+        fileInfo.readFields(new DataInputStream(new ByteArrayInputStream(buffer)));
+        return fileInfo;
+    }
+
+    // Same format as HFile.BlockIndex.writeIndex: magic, then offset, size and key of every block
+    static Utils.Index decodeIndex(byte[] buffer, int position, int count) throws IOException {
+
+        byte[][] keys = new byte[count][];
+        long[] offsets = new long[count];
+        int[] sizes = new int[count];
+
+        if (count == 0) {
+            return new Utils.Index(keys, offsets, sizes);
+        }
+
+        if (position < 0 || position + INDEXBLOCKMAGIC.length > buffer.length
+                || Bytes.compareTo(buffer, position, INDEXBLOCKMAGIC.length, INDEXBLOCKMAGIC, 0, INDEXBLOCKMAGIC.length) != 0) {
+            throw new IOException("Invalid index block magic at tail position " + position);
+        }
+        position += INDEXBLOCKMAGIC.length;
+
+        try {
+            for (int i = 0; i < count; ++i) {
+                offsets[i] = Bytes.toLong(buffer, position);
+                position += Bytes.SIZEOF_LONG;
+                sizes[i] = Bytes.toInt(buffer, position);
+                position += Bytes.SIZEOF_INT;
+
+                int keyLength = (int) readVLong(buffer, position);
+                position += WritableUtils.decodeVIntSize(buffer[position]);
+                keys[i] = Arrays.copyOfRange(buffer, position, position + keyLength);
+                position += keyLength;
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Truncated block index: " + e);
+        }
+
+        return new Utils.Index(keys, offsets, sizes);
+    }
+
+    // Inverse of decodeIndex, writes the first count entries. Like HFile.Writer, an empty
+    // index is not written at all.
+    static void writeIndex(DataOutputStream out, byte[][] keys, long[] offsets, int[] sizes, int count) throws IOException {
+        if (count == 0) {
+            return;
+        }
+        out.write(INDEXBLOCKMAGIC);
+        for (int i = 0; i < count; ++i) {
+            out.writeLong(offsets[i]);
+            out.writeInt(sizes[i]);
+            WritableUtils.writeVInt(out, keys[i].length);
+            out.write(keys[i]);
+        }
+    }
+
+    // WritableUtils.readVLong over a byte array
+    static long readVLong(byte[] buffer, int position) {
+        byte first = buffer[position];
+        int size = WritableUtils.decodeVIntSize(first);
+        if (size == 1) {
+            return first;
+        }
+        long value = 0;
+        for (int i = 1; i < size; ++i) {
+            value = (value << 8) | (buffer[position + i] & 0xFF);
+        }
+        return WritableUtils.isNegativeVInt(first) ? ~value : value;
+    }
+
+}
@@ -0,0 +1,368 @@
+package com.ambrella;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PositionedReadable;
+import org.apache.hadoop.hdfs.DFSClient;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
+import org.apache.hadoop.hdfs.protocol.LocatedBlock;
+import org.apache.hadoop.net.NetUtils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Positional reads of an HDFS file straight from the datanodes, hedged across replicas.
+// A block range is requested from the replica with the best latency score first; if it has not
+// arrived after the hedge threshold, the same range is requested from the next replica and the
+// first complete copy wins, the other read is aborted by closing its socket. The first request
+// reads straight into the caller's buffer, only hedged requests read into a buffer of their own,
+// which is copied over if the hedge wins.
+//
+// Every datanode read scores the datanode with its time relative to the threshold, an aborted
+// read with its time until the abort and a failed read at least 2. Datanodes whose average
+// score stays above 1 are excluded for the rest of the run: they are only asked when no other
+// replica of a block is left.
+//
+// Files of other file systems, and reads past the located blocks, go to the wrapped stream.
+public class HedgedReader implements PositionedReadable {
+
+    // weight of the latest read in the latency score of a datanode
+    private static final double SCORE_WEIGHT = 0.3;
+    private static final double FAILED_READ_SCORE = 2;
+
+    static class DatanodeStats {
+        final String name;
+        private double score = 0;
+        private int reads = 0;
+        private volatile boolean excluded = false;
+
+        DatanodeStats(String name) {
+            this.name = name;
+        }
+
+        synchronized void update(double readScore) {
+            score = reads == 0 ? readScore : score + SCORE_WEIGHT * (readScore - score);
+            reads += 1;
+
+            if (!excluded && reads >= Config.Hedge.MIN_READS && score > 1) {
+                excluded = true;
+                Metrics.counter("datanodes.excluded").inc();
+                Log.warn("datanode", name, "stays slow, average", String.format("%.1f", score),
+                        "times the hedge threshold over", reads, "reads, excluding it");
+            }
+        }
+
+        synchronized double getScore() {
+            return score;
+        }
+
+        boolean isExcluded() {
+            return excluded;
+        }
+    }
+
+    private static final ConcurrentMap<String, DatanodeStats> datanodes = new ConcurrentHashMap<String, DatanodeStats>();
+
+    private static final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "hedged-read");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final PositionedReadable stream;
+    private final String path;
+    private final long length;
+    // sorted by start offset, null if the reads go to stream
+    private final List<LocatedBlock> blocks;
+    private final int socketTimeout;
+    private final int bufferSize;
+
+    private HedgedReader(PositionedReadable stream, String path, long length, List<LocatedBlock> blocks, Configuration conf) {
+        this.stream = stream;
+        this.path = path;
+        this.length = length;
+        this.blocks = blocks;
+        this.socketTimeout = conf.getInt("dfs.socket.timeout", 60 * 1000);
+        this.bufferSize = conf.getInt("io.file.buffer.size", 4096);
+    }
+
+    // stream is an open stream of the file, used when the datanodes can not be read directly
+    public static HedgedReader open(Configuration conf, FileSystem fs, Path file, PositionedReadable stream) throws IOException {
+        FileStatus status = fs.getFileStatus(file);
+        List<LocatedBlock> blocks = null;
+
+        if (Config.Hedge.ENABLED && fs instanceof DistributedFileSystem) {
+            long rpcStart = System.nanoTime();
+            blocks = BlockAvailabilityMap.getNamenode(conf).getBlockLocations(file.toUri().getPath(), 0, status.getLen()).getLocatedBlocks();
+            Metrics.histogram("namenode.getBlockLocations").updateSince(rpcStart);
+        }
+
+        return new HedgedReader(stream, file.toUri().getPath(), status.getLen(), blocks, conf);
+    }
+
+    public int read(long position, byte[] buffer, int offset, int length) throws IOException {
+        if (position >= this.length) {
+            return -1;
+        }
+        int available = (int) Math.min(length, this.length - position);
+        readFully(position, buffer, offset, available);
+        return available;
+    }
+
+    public void readFully(long position, byte[] buffer) throws IOException {
+        readFully(position, buffer, 0, buffer.length);
+    }
+
+    public void readFully(long position, byte[] buffer, int offset, int length) throws IOException {
+        if (position + length > this.length) {
+            throw new EOFException("read of " + length + " bytes at offset " + position + " past the end of " + path);
+        }
+
+        while (length > 0) {
+            LocatedBlock block = blocks != null ? findBlock(position) : null;
+
+            if (block == null) {
+                stream.readFully(position, buffer, offset, length);
+                return;
+            }
+
+            int chunk = (int) Math.min(length, block.getStartOffset() + block.getBlockSize() - position);
+            readBlock(block, position - block.getStartOffset(), buffer, offset, chunk);
+
+            position += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    private LocatedBlock findBlock(long position) {
+        int low = 0;
+        int high = blocks.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            LocatedBlock block = blocks.get(middle);
+            if (position < block.getStartOffset()) {
+                high = middle - 1;
+            } else if (position >= block.getStartOffset() + block.getBlockSize()) {
+                low = middle + 1;
+            } else {
+                return block;
+            }
+        }
+        return null;
+    }
+
+    static DatanodeStats getStats(DatanodeInfo datanode) {
+        DatanodeStats stats = datanodes.get(datanode.getName());
+        if (stats == null) {
+            DatanodeStats created = new DatanodeStats(datanode.getName());
+            stats = datanodes.putIfAbsent(datanode.getName(), created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        return stats;
+    }
+
+    // Replicas in the namenode order, stable sorted by score with excluded datanodes last.
+    // Scores change under concurrent reads, so the sort uses a snapshot of them.
+    private static List<DatanodeInfo> orderReplicas(DatanodeInfo[] locations) {
+        List<DatanodeInfo> replicas = new ArrayList<DatanodeInfo>(Arrays.asList(locations));
+        final Map<DatanodeInfo, Boolean> excluded = new IdentityHashMap<DatanodeInfo, Boolean>();
+        final Map<DatanodeInfo, Double> scores = new IdentityHashMap<DatanodeInfo, Double>();
+        for (DatanodeInfo replica : replicas) {
+            DatanodeStats stats = getStats(replica);
+            excluded.put(replica, stats.isExcluded());
+            scores.put(replica, stats.getScore());
+        }
+
+        Collections.sort(replicas, new Comparator<DatanodeInfo>() {
+            public int compare(DatanodeInfo a, DatanodeInfo b) {
+                if (!excluded.get(a).equals(excluded.get(b))) {
+                    return excluded.get(a) ? 1 : -1;
+                }
+                return Double.compare(scores.get(a), scores.get(b));
+            }
+        });
+
+        return replicas;
+    }
+
+    private void readBlock(LocatedBlock block, long offsetInBlock, byte[] buffer, int offset, int length) throws IOException {
+        List<DatanodeInfo> replicas = orderReplicas(block.getLocations());
+        long thresholdNanos = TimeUnit.MILLISECONDS.toNanos(Config.Hedge.THRESHOLD_MS) + length * 1000000000L / Config.Hedge.MIN_RATE;
+
+        CompletionService<byte[]> completion = new ExecutorCompletionService<byte[]>(executor);
+        List<ReplicaRead> reads = new ArrayList<ReplicaRead>();
+        IOException failure = null;
+        int running = 0;
+        // the read writing into buffer, started when no other read is running
+        ReplicaRead direct = null;
+
+        try {
+            while (true) {
+                if (running == 0) {
+                    if (reads.size() == replicas.size()) {
+                        throw failure != null ? failure : new IOException("no replicas of block " + block.getBlock().getBlockName() + " of " + path);
+                    }
+                    direct = new ReplicaRead(replicas.get(reads.size()), block, offsetInBlock, length, thresholdNanos, buffer, offset);
+                    direct.future = completion.submit(direct);
+                    reads.add(direct);
+                    running += 1;
+                }
+
+                Future<byte[]> done;
+                if (reads.size() < replicas.size()) {
+                    done = completion.poll(thresholdNanos, TimeUnit.NANOSECONDS);
+                    if (done == null) {
+                        ReplicaRead hedge = new ReplicaRead(replicas.get(reads.size()), block, offsetInBlock, length, thresholdNanos, null, 0);
+                        Log.debug("hedging read of", length, "bytes of block", block.getBlock().getBlockName(), "on", hedge.datanode.getName());
+                        Metrics.counter("reads.hedged").inc();
+                        hedge.future = completion.submit(hedge);
+                        reads.add(hedge);
+                        running += 1;
+                        continue;
+                    }
+                } else {
+                    done = completion.take();
+                }
+
+                running -= 1;
+
+                try {
+                    byte[] data = done.get();
+                    if (data != buffer) {
+                        // the direct read may still be writing into buffer, stop it first
+                        direct.abort();
+                        try {
+                            direct.future.get();
+                        } catch (ExecutionException e) {
+                            // lost the race against the hedge
+                        }
+                        System.arraycopy(data, 0, buffer, offset, length);
+                    }
+                    if (reads.size() > 1 && reads.get(0).future != done) {
+                        Metrics.counter("reads.hedge.won").inc();
+                    }
+                    return;
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        failure = (IOException) e.getCause();
+                    } else {
+                        throw new RuntimeException(e.getCause());
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted during read of block " + block.getBlock().getBlockName());
+        } finally {
+            for (ReplicaRead read : reads) {
+                read.abort();
+            }
+        }
+    }
+
+    private class ReplicaRead implements Callable<byte[]> {
+        final DatanodeInfo datanode;
+        final LocatedBlock block;
+        final long offsetInBlock;
+        final int length;
+        final long thresholdNanos;
+        // data is read into target at targetOffset, or into a new array if target is null
+        final byte[] target;
+        final int targetOffset;
+
+        Future<byte[]> future;
+
+        private Socket socket = null;
+        private boolean aborted = false;
+
+        ReplicaRead(DatanodeInfo datanode, LocatedBlock block, long offsetInBlock, int length, long thresholdNanos, byte[] target, int targetOffset) {
+            this.datanode = datanode;
+            this.block = block;
+            this.offsetInBlock = offsetInBlock;
+            this.length = length;
+            this.thresholdNanos = thresholdNanos;
+            this.target = target;
+            this.targetOffset = targetOffset;
+        }
+
+        public byte[] call() throws IOException {
+            DatanodeStats stats = getStats(datanode);
+            long start = System.nanoTime();
+
+            Socket socket = new Socket();
+            synchronized (this) {
+                if (aborted) {
+                    // another replica finished before this read started
+                    return null;
+                }
+                this.socket = socket;
+            }
+
+            try {
+                NetUtils.connect(socket, NetUtils.createSocketAddr(datanode.getName()), socketTimeout);
+                socket.setSoTimeout(socketTimeout);
+
+                DFSClient.BlockReader reader = DFSClient.BlockReader.newBlockReader(socket, path,
+                        block.getBlock().getBlockId(), block.getBlockToken(), block.getBlock().getGenerationStamp(),
+                        offsetInBlock, length, bufferSize);
+
+                byte[] data = target != null ? target : new byte[length];
+                int read = reader.readAll(data, target != null ? targetOffset : 0, length);
+                if (read != length) {
+                    throw new IOException("short read of " + read + " of " + length + " bytes from " + datanode.getName());
+                }
+
+                stats.update((double) (System.nanoTime() - start) / thresholdNanos);
+                Metrics.histogram("datanode." + datanode.getName() + ".read").updateSince(start);
+                return data;
+
+            } catch (IOException e) {
+                double elapsed = (double) (System.nanoTime() - start) / thresholdNanos;
+                if (isAborted()) {
+                    // lost the race against another replica
+                    stats.update(elapsed);
+                } else {
+                    stats.update(Math.max(FAILED_READ_SCORE, elapsed));
+                    Metrics.counter("read.datanode.failures").inc();
+                    Log.debug("read of block", block.getBlock().getBlockName(), "from", datanode.getName(), "failed:", e.getMessage());
+                }
+                throw e;
+
+            } finally {
+                closeSocket();
+            }
+        }
+
+        private synchronized boolean isAborted() {
+            return aborted;
+        }
+
+        synchronized void abort() {
+            aborted = true;
+            closeSocket();
+        }
+
+        private synchronized void closeSocket() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // the read is over either way
+                }
+            }
+        }
+    }
+
+}
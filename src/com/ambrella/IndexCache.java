@@ -0,0 +1,150 @@
+package com.ambrella;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import org.apache.hadoop.fs.FileStatus;
+
+import java.io.*;
+import java.util.Arrays;
+
+// Local cache of HFile block indexes, enabled with -Dhbaserecovery.index.cache=DIR. Every index
+// is stored in its own binary sidecar file named after the hash of the HFile path, length and
+// modification time, so repeated runs over the same files do not read and parse the indexes
+// from HDFS again. Entries are never evicted; the directory can be deleted at any time.
+//
+// Sidecar layout: MAGIC, version, file length, modification time, path, block count,
+// offsets (long[count]), sizes (int[count]), key ends (int[count]), concatenated keys.
+public class IndexCache {
+
+    private static final byte[] MAGIC = {'I', 'D', 'X', 'C', 'A', 'C', 'H', 'E'};
+    private static final int VERSION = 1;
+
+    private static File getCacheFile(FileStatus status) {
+        String id = status.getPath().toString() + "\n" + status.getLen() + "\n" + status.getModificationTime();
+        return new File(Config.IndexCache.DIRECTORY, Hashing.sha1().hashString(id, Charsets.UTF_8).toString() + ".idx");
+    }
+
+    // Returns the cached index of the file, or null if there is no valid cache entry
+    static Utils.Index load(FileStatus status) {
+        if (!Config.IndexCache.ENABLED) {
+            return null;
+        }
+
+        File cacheFile = getCacheFile(status);
+        if (!cacheFile.exists()) {
+            return null;
+        }
+
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile), 1024 * 1024));
+            try {
+                byte[] magic = new byte[MAGIC.length];
+                in.readFully(magic);
+                if (!Arrays.equals(magic, MAGIC) || in.readInt() != VERSION) {
+                    return null;
+                }
+
+                long length = in.readLong();
+                long modificationTime = in.readLong();
+                byte[] path = new byte[in.readInt()];
+                in.readFully(path);
+
+                if (length != status.getLen() || modificationTime != status.getModificationTime()
+                        || !new String(path, Charsets.UTF_8).equals(status.getPath().toString())) {
+                    return null;
+                }
+
+                int count = in.readInt();
+
+                long[] offsets = new long[count];
+                for (int i = 0; i < count; ++i) {
+                    offsets[i] = in.readLong();
+                }
+
+                int[] sizes = new int[count];
+                for (int i = 0; i < count; ++i) {
+                    sizes[i] = in.readInt();
+                }
+
+                int[] keyEnds = new int[count];
+                for (int i = 0; i < count; ++i) {
+                    keyEnds[i] = in.readInt();
+                }
+
+                byte[][] keys = new byte[count][];
+                int keyStart = 0;
+                for (int i = 0; i < count; ++i) {
+                    keys[i] = new byte[keyEnds[i] - keyStart];
+                    in.readFully(keys[i]);
+                    keyStart = keyEnds[i];
+                }
+
+                return new Utils.Index(keys, offsets, sizes);
+
+            } finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            Log.warn("failed to read cached index", cacheFile, e);
+            return null;
+        }
+    }
+
+    static void store(FileStatus status, Utils.Index index) {
+        if (!Config.IndexCache.ENABLED) {
+            return;
+        }
+
+        File cacheFile = getCacheFile(status);
+        File dir = cacheFile.getParentFile();
+
+        try {
+            if (!dir.exists() && !dir.mkdirs()) {
+                Log.warn("failed to create index cache directory", dir);
+                return;
+            }
+
+            File tmp = File.createTempFile(cacheFile.getName(), ".tmp", dir);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1024 * 1024));
+
+            try {
+                int count = (int) index.getLength();
+                byte[] path = status.getPath().toString().getBytes(Charsets.UTF_8);
+
+                out.write(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(status.getLen());
+                out.writeLong(status.getModificationTime());
+                out.writeInt(path.length);
+                out.write(path);
+                out.writeInt(count);
+
+                for (int i = 0; i < count; ++i) {
+                    out.writeLong(index.getOffset(i));
+                }
+                for (int i = 0; i < count; ++i) {
+                    out.writeInt((int) index.getSize(i));
+                }
+                int keyEnd = 0;
+                for (int i = 0; i < count; ++i) {
+                    keyEnd += index.getKey(i).length;
+                    out.writeInt(keyEnd);
+                }
+                for (int i = 0; i < count; ++i) {
+                    out.write(index.getKey(i));
+                }
+            } finally {
+                out.close();
+            }
+
+            if (!tmp.renameTo(cacheFile)) {
+                Log.warn("failed to store cached index", cacheFile);
+                tmp.delete();
+            }
+
+        } catch (IOException e) {
+            Log.warn("failed to store cached index", cacheFile, e);
+        }
+    }
+
+}
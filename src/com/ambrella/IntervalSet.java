@@ -0,0 +1,145 @@
+package com.ambrella;
+
+import java.util.Arrays;
+
+// Sorted, disjoint half-open [start, end) intervals of byte offsets kept in two long arrays.
+// Adding an interval merges it with every interval it overlaps or touches. Lookups are a binary
+// search and allocate nothing; a Cursor answers a sequence of lookups with non-decreasing starts,
+// like a pass over the data blocks of a file, in amortized O(1) each.
+//
+// Not thread safe, callers sharing a set between threads synchronize on it.
+public class IntervalSet {
+
+    private long[] starts = new long[8];
+    private long[] ends = new long[8];
+    private int size = 0;
+
+    // incremented by add(), cursors look up their position again when it changes
+    private int modifications = 0;
+
+    public IntervalSet() {
+    }
+
+    public IntervalSet(IntervalSet other) {
+        starts = Arrays.copyOf(other.starts, Math.max(8, other.size));
+        ends = Arrays.copyOf(other.ends, Math.max(8, other.size));
+        size = other.size;
+    }
+
+    public void add(long start, long end) {
+        if (start >= end) {
+            return;
+        }
+
+        // first interval that ends at or after start, and one past the last that starts at or before end
+        int first = firstEndingAtOrAfter(start);
+        int last = first;
+        while (last < size && starts[last] <= end) {
+            last++;
+        }
+
+        if (first == last) {
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+            }
+            System.arraycopy(starts, first, starts, first + 1, size - first);
+            System.arraycopy(ends, first, ends, first + 1, size - first);
+            starts[first] = start;
+            ends[first] = end;
+            size++;
+        } else {
+            starts[first] = Math.min(start, starts[first]);
+            ends[first] = Math.max(end, ends[last - 1]);
+            int removed = last - first - 1;
+            System.arraycopy(starts, last, starts, first + 1, size - last);
+            System.arraycopy(ends, last, ends, first + 1, size - last);
+            size -= removed;
+        }
+
+        modifications++;
+    }
+
+    // True if any interval overlaps [start, end)
+    public boolean intersects(long start, long end) {
+        int i = firstEndingAfter(start);
+        return i < size && starts[i] < end;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getStart(int i) {
+        return starts[i];
+    }
+
+    public long getEnd(int i) {
+        return ends[i];
+    }
+
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    private int firstEndingAtOrAfter(long offset) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (ends[middle] < offset) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private int firstEndingAfter(long offset) {
+        return offset == Long.MAX_VALUE ? size : firstEndingAtOrAfter(offset + 1);
+    }
+
+    static String toString(long start, long end) {
+        return "[" + start + ".." + end + ")";
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("{");
+        for (int i = 0; i < size; ++i) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append(toString(starts[i], ends[i]));
+        }
+        return builder.append('}').toString();
+    }
+
+    // Remembers the first interval that may still overlap the next lookup. A lookup with a smaller
+    // start than the previous one, or after the set changed, falls back to a binary search.
+    public class Cursor {
+        private int position = 0;
+        private long lastStart = Long.MIN_VALUE;
+        private int seenModifications = modifications;
+
+        public boolean intersects(long start, long end) {
+            if (start < lastStart || seenModifications != modifications) {
+                position = firstEndingAfter(start);
+                seenModifications = modifications;
+            } else {
+                while (position < size && ends[position] <= start) {
+                    position++;
+                }
+            }
+            lastStart = start;
+
+            return position < size && starts[position] < end;
+        }
+    }
+
+}
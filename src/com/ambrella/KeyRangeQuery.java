@@ -0,0 +1,254 @@
+package com.ambrella;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+import static com.ambrella.Log.log;
+import static com.ambrella.Utils.exit;
+
+// Reads the KeyValues of a row range out of a store file without scanning it. The first block
+// is found with a binary search over the block index, then only the blocks up to the end of
+// the range are read. Blocks in unavailable ranges are skipped and reported, so the result
+// of a query over a damaged file is everything that is still readable.
+public class KeyRangeQuery {
+
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+    static class Query {
+        // inclusive
+        byte[] startRow = new byte[0];
+        // exclusive, null for the end of the file
+        byte[] endRow = null;
+        // null for all families, qualifier null for all columns of the family
+        byte[] family = null;
+        byte[] qualifier = null;
+        // [minTimestamp, maxTimestamp)
+        long minTimestamp = 0;
+        long maxTimestamp = Long.MAX_VALUE;
+
+        boolean matchesColumn(KeyValue kv) {
+            if (family == null) {
+                return true;
+            }
+            return qualifier == null ? kv.matchingFamily(family) : kv.matchingColumn(family, qualifier);
+        }
+
+        boolean matchesTimestamp(KeyValue kv) {
+            long timestamp = kv.getTimestamp();
+            return timestamp >= minTimestamp && timestamp < maxTimestamp;
+        }
+    }
+
+    interface Sink {
+        void accept(KeyValue kv) throws IOException;
+    }
+
+    static class Result {
+        int blocksRead = 0;
+        int blocksSkipped = 0;
+        int matches = 0;
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        Query query = new Query();
+        boolean printValues = false;
+        boolean argsValid = args.length >= 1;
+
+        try {
+            for (int i = 1; i < args.length && argsValid; ++i) {
+                if (args[i].equals("-v")) {
+                    printValues = true;
+                } else if (i + 1 >= args.length) {
+                    argsValid = false;
+                } else if (args[i].equals("-s")) {
+                    query.startRow = Bytes.toBytesBinary(args[++i]);
+                } else if (args[i].equals("-e")) {
+                    query.endRow = Bytes.toBytesBinary(args[++i]);
+                } else if (args[i].equals("-x")) {
+                    query.startRow = Bytes.toBytesBinary(args[++i]);
+                    query.endRow = prefixEnd(query.startRow);
+                } else if (args[i].equals("-c")) {
+                    String column = args[++i];
+                    int colon = column.indexOf(':');
+                    query.family = Bytes.toBytesBinary(colon < 0 ? column : column.substring(0, colon));
+                    query.qualifier = colon < 0 ? null : Bytes.toBytesBinary(column.substring(colon + 1));
+                } else if (args[i].equals("-t")) {
+                    String[] window = args[++i].split(",");
+                    query.minTimestamp = Long.parseLong(window[0]);
+                    if (window.length > 1) {
+                        query.maxTimestamp = Long.parseLong(window[1]);
+                    }
+                } else {
+                    argsValid = false;
+                }
+            }
+        } catch (NumberFormatException e) {
+            argsValid = false;
+        }
+
+        if (!argsValid) {
+            Log.includeTimestamp = false;
+            log("args: FILE [-s START_ROW] [-e END_ROW] [-x ROW_PREFIX] [-c FAMILY[:QUALIFIER]] [-t MIN_TS[,MAX_TS]] [-v]");
+            log("Prints the KeyValues of the rows in [START_ROW, END_ROW) that are still readable.");
+            log("Rows, families and qualifiers are in the escaped binary format of the HBase shell.");
+            log("Options:");
+            log("\t -s \t first row (default the first row of the file)");
+            log("\t -e \t row after the last one (default the end of the file)");
+            log("\t -x \t all rows starting with ROW_PREFIX, replaces -s and -e");
+            log("\t -c \t only this family, or this column");
+            log("\t -t \t only timestamps in [MIN_TS, MAX_TS)");
+            log("\t -v \t print values too, not only their sizes");
+            log("KeyValues are printed to stdout, the log to stderr.");
+            log(Config.IndexCache.USAGE);
+            exit(1);
+        }
+
+        Path file = new Path(args[0]);
+        Configuration conf = Config.Hadoop.makeConfig();
+        FileSystem fs = file.getFileSystem(conf);
+
+        // stdout carries the KeyValues, the log goes to stderr so it does not mix with them
+        Log.useStderr();
+        final PrintStream out = new PrintStream(new BufferedOutputStream(System.out, OUTPUT_BUFFER_SIZE), false);
+
+        final boolean values = printValues;
+        Result result;
+        try {
+            result = query(conf, fs, file, query, new Sink() {
+                public void accept(KeyValue kv) {
+                    String key = KeyValue.keyToString(kv.getBuffer(), kv.getKeyOffset(), kv.getKeyLength());
+                    if (values) {
+                        out.println("key=" + key + ", value=" + Bytes.toStringBinary(kv.getBuffer(), kv.getValueOffset(), kv.getValueLength()));
+                    } else {
+                        out.println("key=" + key + ", value size=" + kv.getValueLength());
+                    }
+                }
+            });
+        } finally {
+            out.flush();
+        }
+
+        log("matched", result.matches, "KeyValues in", result.blocksRead, "blocks");
+        if (result.blocksSkipped > 0) {
+            Log.warn(result.blocksSkipped, "blocks of the range are unavailable, the result is incomplete");
+        }
+
+        exit(result.blocksSkipped > 0 ? 2 : 0);
+    }
+
+    // The row after all rows starting with prefix, null if there is none
+    static byte[] prefixEnd(byte[] prefix) {
+        for (int i = prefix.length - 1; i >= 0; --i) {
+            if (prefix[i] != (byte) 0xff) {
+                byte[] end = Arrays.copyOf(prefix, i + 1);
+                end[i] += 1;
+                return end;
+            }
+        }
+        return null;
+    }
+
+    // The last block starting before the first key of the row, where the row may begin
+    static int findFirstBlock(Utils.Index index, byte[] row, KeyValue.KeyComparator comparator) {
+        byte[] searchKey = KeyValue.createFirstOnRow(row).getKey();
+
+        int low = 0;
+        int high = (int) index.getLength();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (comparator.compare(index.getKey(middle), searchKey) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return Math.max(0, low - 1);
+    }
+
+    private static int compareRow(byte[] key, int keyOffset, byte[] row, KeyValue.KeyComparator comparator) {
+        short rowLength = Bytes.toShort(key, keyOffset);
+        return comparator.compareRows(key, keyOffset + Bytes.SIZEOF_SHORT, rowLength, row, 0, row.length);
+    }
+
+    static Result query(Configuration conf, FileSystem fs, Path file, Query query, Sink sink) throws IOException {
+
+        Utils.Index index = Utils.readHFileIndex(conf, file);
+
+        KeyValue.KeyComparator comparator = new KeyValue.KeyComparator();
+        FileStatus status = fs.getFileStatus(file);
+        IntervalSet missingRanges = BlockAvailabilityMap.build(conf, fs, file).getMissingRanges();
+
+        FSDataInputStream stream = fs.open(file);
+        HedgedReader reader = HedgedReader.open(conf, fs, file, stream);
+
+        Result result = new Result();
+
+        try {
+            for (int i = findFirstBlock(index, query.startRow, comparator); i < index.getLength(); ++i) {
+
+                if (query.endRow != null && compareRow(index.getKey(i), 0, query.endRow, comparator) >= 0) {
+                    break;
+                }
+
+                long offset = index.getOffset(i);
+                int size = (int) index.getSize(i);
+
+                if (missingRanges.intersects(offset, offset + size)) {
+                    log("skipping block in non-readable range:", IntervalSet.toString(offset, offset + size), "first key", KeyValue.keyToString(index.getKey(i)));
+                    result.blocksSkipped += 1;
+                    continue;
+                }
+
+                HFileDataBlock block;
+                try {
+                    block = HFileDataBlock.read(reader, offset, size);
+                    Metrics.counter("bytes.read").add(size);
+                } catch (IOException e) {
+                    for (BlockLocation loc : fs.getFileBlockLocations(status, offset, size)) {
+                        missingRanges.add(loc.getOffset(), loc.getOffset() + loc.getLength());
+                        log("adding missing byte range:", IntervalSet.toString(loc.getOffset(), loc.getOffset() + loc.getLength()));
+                    }
+                    result.blocksSkipped += 1;
+                    continue;
+                }
+
+                result.blocksRead += 1;
+
+                HFileDataBlock.RecordCursor cursor = block.cursor();
+                while (cursor.next()) {
+                    int keyOffset = cursor.getKeyOffset();
+                    if (compareRow(block.data, keyOffset, query.startRow, comparator) < 0) {
+                        continue;
+                    }
+                    if (query.endRow != null && compareRow(block.data, keyOffset, query.endRow, comparator) >= 0) {
+                        return result;
+                    }
+
+                    KeyValue kv = cursor.getKeyValue();
+                    if (query.matchesColumn(kv) && query.matchesTimestamp(kv)) {
+                        result.matches += 1;
+                        sink.accept(kv);
+                    }
+                }
+            }
+        } finally {
+            stream.close();
+        }
+
+        return result;
+    }
+
+}
@@ -1,23 +1,291 @@
 package com.ambrella;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
+// Callers only format the message and put it into a bounded queue, a background thread adds the
+// timestamp and writes lines to stdout, or stderr, in batches. The queue blocks callers when it
+// is full, so no lines are lost, and a shutdown hook writes whatever is left when the tool exits.
+//
+// Configured with system properties, see Config.Log.
 public class Log {
 
+    public enum Level {DEBUG, INFO, WARN, ERROR}
+
     public static boolean includeTimestamp = true;
 
+    public static Level level = Config.Log.LEVEL;
+
+    public static boolean json = Config.Log.JSON;
+
+    private static class Entry {
+        final long time;
+        final Level level;
+        final String thread;
+        final String message;
+
+        Entry(long time, Level level, String thread, String message) {
+            this.time = time;
+            this.level = level;
+            this.thread = thread;
+            this.message = message;
+        }
+    }
+
+    private static final BlockingQueue<Entry> queue = new ArrayBlockingQueue<Entry>(Config.Log.QUEUE_SIZE);
+
+    // entries queued but not written yet, guarded by the queue
+    private static long pending = 0;
+
+    // stdout, or stderr for tools that print their results to stdout, see useStderr()
+    private static volatile PrintStream target = System.out;
+
+    private static final Writer out = new BufferedWriter(new OutputStreamWriter(new OutputStream() {
+        @Override
+        public void write(int b) {
+            target.write(b);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) {
+            target.write(data, offset, length);
+        }
+
+        @Override
+        public void flush() {
+            target.flush();
+        }
+    }), 64 * 1024);
+
+    private static final AtomicLong nextProgressTime = new AtomicLong();
+
+    // timestamp text of the last formatted second, only used by the writer thread
+    private static final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss Z");
+    private static long formattedSecond = -1;
+    private static String formattedTime;
+
+    static {
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                List<Entry> batch = new ArrayList<Entry>();
+                try {
+                    while (true) {
+                        batch.add(queue.take());
+                        queue.drainTo(batch);
+                        write(batch);
+                        batch.clear();
+                    }
+                } catch (InterruptedException e) {
+                    // exit quietly, the shutdown hook writes the rest
+                }
+            }
+        }, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                flush(Config.Log.SHUTDOWN_TIMEOUT_MS);
+            }
+        }, "log-flush"));
+
+        if (!Config.Log.LEVEL.name().equals(Config.Log.LEVEL_NAME)) {
+            warn("unknown log level", Config.Log.LEVEL_NAME + ", using", Config.Log.LEVEL);
+        }
+    }
+
     static void log(Object... objects) {
-        if (Log.includeTimestamp) {
-            String time = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss Z").format(new Date());
+        log(Level.INFO, objects);
+    }
+
+    static void debug(Object... objects) {
+        log(Level.DEBUG, objects);
+    }
+
+    static void warn(Object... objects) {
+        log(Level.WARN, objects);
+    }
+
+    static void error(Object... objects) {
+        log(Level.ERROR, objects);
+    }
+
+    static boolean isEnabled(Level level) {
+        return level.compareTo(Log.level) >= 0;
+    }
 
-            System.out.print(time + " ");
+    static void log(Level level, Object... objects) {
+        if (!isEnabled(level)) {
+            return;
         }
 
+        StringBuilder message = new StringBuilder();
         for (Object object : objects) {
-            System.out.print(object.toString() + " ");
+            if (level == Level.ERROR && object instanceof Throwable) {
+                // errors are logged with the stack trace of their exception
+                StringWriter trace = new StringWriter();
+                ((Throwable) object).printStackTrace(new PrintWriter(trace));
+                message.append('\n').append(trace.toString().trim()).append(' ');
+            } else {
+                message.append(object).append(' ');
+            }
+        }
+
+        Entry entry = new Entry(System.currentTimeMillis(), level, Thread.currentThread().getName(), message.toString());
+
+        synchronized (queue) {
+            pending += 1;
+        }
+
+        try {
+            queue.put(entry);
+        } catch (InterruptedException e) {
+            synchronized (queue) {
+                pending -= 1;
+            }
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Writes the log to stderr from now on, lines queued before are written to stdout first
+    static void useStderr() {
+        flush(Config.Log.SHUTDOWN_TIMEOUT_MS);
+        target = System.err;
+    }
+
+    // Returns true at most once per Config.Log.PROGRESS_INTERVAL_MS, so progress lines can skip
+    // formatting their message when it would not be printed.
+    static boolean progressDue() {
+        long now = System.currentTimeMillis();
+        long next = nextProgressTime.get();
+        return now >= next && nextProgressTime.compareAndSet(next, now + Config.Log.PROGRESS_INTERVAL_MS);
+    }
+
+    // Waits until all queued lines are written, at most timeoutMs milliseconds
+    static void flush(long timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (queue) {
+            while (pending > 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                try {
+                    queue.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+
+        synchronized (out) {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                // nowhere to report it
+            }
+        }
+    }
+
+    private static void write(List<Entry> batch) {
+        synchronized (out) {
+            try {
+                for (Entry entry : batch) {
+                    if (json) {
+                        writeJson(entry);
+                    } else {
+                        writeText(entry);
+                    }
+                }
+                out.flush();
+            } catch (IOException e) {
+                // stdout is gone, drop the lines
+            }
+        }
+
+        synchronized (queue) {
+            pending -= batch.size();
+            queue.notifyAll();
+        }
+    }
+
+    private static String formatTime(long time) {
+        long second = time / 1000;
+        if (second != formattedSecond) {
+            formattedTime = dateFormat.format(new Date(time));
+            formattedSecond = second;
+        }
+        return formattedTime;
+    }
+
+    private static void writeText(Entry entry) throws IOException {
+        if (includeTimestamp) {
+            out.write(formatTime(entry.time));
+            out.write(' ');
+        }
+        if (entry.level != Level.INFO) {
+            out.write(entry.level.name());
+            out.write(": ");
+        }
+        out.write(entry.message);
+        out.write('\n');
+    }
+
+    private static void writeJson(Entry entry) throws IOException {
+        out.write("{\"time\":");
+        out.write(Long.toString(entry.time));
+        out.write(",\"level\":\"");
+        out.write(entry.level.name());
+        out.write("\",\"thread\":");
+        writeJsonString(entry.thread);
+        out.write(",\"message\":");
+        writeJsonString(entry.message.trim());
+        out.write("}\n");
+    }
+
+    private static void writeJsonString(String value) throws IOException {
+        out.write('"');
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.write("\\\"");
+                    break;
+                case '\\':
+                    out.write("\\\\");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.write(c);
+                    }
+            }
         }
-        System.out.println();
+        out.write('"');
     }
 
 }
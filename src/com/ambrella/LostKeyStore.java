@@ -0,0 +1,562 @@
+package com.ambrella;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import static com.ambrella.Log.log;
+import static com.ambrella.Utils.exit;
+
+// Row ranges of lost data blocks in a sorted, prefix-compressed binary file, written next to
+// the text missing keys log as LOG.lks and merged into one store per table. A lost block
+// covers the rows from the row of its first key to the row of the next block's first key,
+// both inclusive, since either row may have cells on both sides of a block boundary.
+// Overlapping ranges are merged on write, so a store holds disjoint ranges and a row lost
+// cells if the last range starting at or before it also ends at or after it.
+//
+// Layout: MAGIC, the ranges, the sparse index and the trailer. Ranges are written in groups
+// of RESTART_INTERVAL, each one as
+//   vint prefix shared with the previous start row, vint suffix length, suffix,
+//   vint prefix the end row shares with the start row + 1 (0 for no end), vint suffix length, suffix
+// where the first range of a group shares nothing with the range before it, so every group
+// decodes on its own. The index holds the first start row and the offset of every group, the
+// trailer the index offset, the group count, the range count and MAGIC again.
+public class LostKeyStore {
+
+    static final String SUFFIX = ".lks";
+
+    static final byte[] MAGIC = {'L', 'O', 'S', 'T', 'K', 'E', 'Y', 1};
+
+    static final int RESTART_INTERVAL = 16;
+
+    // inputs merged in one pass, more are merged in several passes through temporary stores
+    static final int MERGE_FAN_IN = 256;
+
+    private static final int TRAILER_SIZE = 8 + 4 + 8 + MAGIC.length;
+
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    static class Range {
+        final byte[] start;
+        // inclusive, null if the range runs to the end of the table
+        final byte[] end;
+
+        Range(byte[] start, byte[] end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public String toString() {
+            return Bytes.toStringBinary(start) + " - " + (end == null ? "END" : Bytes.toStringBinary(end));
+        }
+    }
+
+    static final Comparator<Range> START_ORDER = new Comparator<Range>() {
+        public int compare(Range a, Range b) {
+            return Bytes.compareTo(a.start, b.start);
+        }
+    };
+
+    private static class Trailer {
+        long indexOffset;
+        int groupCount;
+        long rangeCount;
+
+        static Trailer parse(byte[] data, int position, String name) throws IOException {
+            if (position < MAGIC.length || Bytes.compareTo(data, 0, MAGIC.length, MAGIC, 0, MAGIC.length) != 0
+                    || Bytes.compareTo(data, position + TRAILER_SIZE - MAGIC.length, MAGIC.length, MAGIC, 0, MAGIC.length) != 0) {
+                throw new IOException("not a lost key store: " + name);
+            }
+            Trailer trailer = new Trailer();
+            trailer.indexOffset = Bytes.toLong(data, position);
+            trailer.groupCount = Bytes.toInt(data, position + 8);
+            trailer.rangeCount = Bytes.toLong(data, position + 12);
+            return trailer;
+        }
+
+        static Trailer read(File file) throws IOException {
+            if (file.length() < MAGIC.length + TRAILER_SIZE) {
+                throw new IOException("not a lost key store: " + file);
+            }
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                // the magic at the start and the trailer, laid out as they are in a whole file
+                byte[] data = new byte[MAGIC.length + TRAILER_SIZE];
+                in.readFully(data, 0, MAGIC.length);
+                in.seek(file.length() - TRAILER_SIZE);
+                in.readFully(data, MAGIC.length, TRAILER_SIZE);
+                return parse(data, MAGIC.length, file.getPath());
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    // Writes ranges given in start row order, merging the overlapping ones
+    static class Writer {
+        private final OutputStream out;
+        private final ByteArrayOutputStream groupBuffer = new ByteArrayOutputStream();
+        private final DataOutputStream group = new DataOutputStream(groupBuffer);
+        private final ByteArrayOutputStream indexBuffer = new ByteArrayOutputStream();
+        private final DataOutputStream index = new DataOutputStream(indexBuffer);
+
+        private long position = MAGIC.length;
+        private int groupSize = 0;
+        private int groupCount = 0;
+        private long rangeCount = 0;
+        private byte[] previousStart = EMPTY;
+        private Range pending = null;
+
+        Writer(File file) throws IOException {
+            out = new BufferedOutputStream(new FileOutputStream(file), IO_BUFFER_SIZE);
+            out.write(MAGIC);
+        }
+
+        void add(Range range) throws IOException {
+            if (pending == null) {
+                pending = range;
+                return;
+            }
+            if (Bytes.compareTo(range.start, pending.start) < 0) {
+                throw new IllegalArgumentException("range " + range + " added after " + pending);
+            }
+            if (pending.end == null || Bytes.compareTo(range.start, pending.end) <= 0) {
+                if (pending.end != null && (range.end == null || Bytes.compareTo(range.end, pending.end) > 0)) {
+                    pending = new Range(pending.start, range.end);
+                }
+                return;
+            }
+            write(pending);
+            pending = range;
+        }
+
+        long getRangeCount() {
+            return rangeCount;
+        }
+
+        private void write(Range range) throws IOException {
+            if (groupSize == RESTART_INTERVAL) {
+                flushGroup();
+            }
+
+            int shared = 0;
+            if (groupSize == 0) {
+                WritableUtils.writeVInt(index, range.start.length);
+                index.write(range.start);
+                WritableUtils.writeVLong(index, position);
+                groupCount += 1;
+            } else {
+                shared = commonPrefix(previousStart, range.start);
+            }
+
+            WritableUtils.writeVInt(group, shared);
+            WritableUtils.writeVInt(group, range.start.length - shared);
+            group.write(range.start, shared, range.start.length - shared);
+
+            if (range.end == null) {
+                WritableUtils.writeVInt(group, 0);
+            } else {
+                int endShared = commonPrefix(range.start, range.end);
+                WritableUtils.writeVInt(group, endShared + 1);
+                WritableUtils.writeVInt(group, range.end.length - endShared);
+                group.write(range.end, endShared, range.end.length - endShared);
+            }
+
+            previousStart = range.start;
+            groupSize += 1;
+            rangeCount += 1;
+        }
+
+        private void flushGroup() throws IOException {
+            groupBuffer.writeTo(out);
+            position += groupBuffer.size();
+            groupBuffer.reset();
+            groupSize = 0;
+        }
+
+        void close() throws IOException {
+            if (pending != null) {
+                write(pending);
+                pending = null;
+            }
+            if (groupSize > 0) {
+                flushGroup();
+            }
+
+            indexBuffer.writeTo(out);
+
+            DataOutputStream trailer = new DataOutputStream(out);
+            trailer.writeLong(position);
+            trailer.writeInt(groupCount);
+            trailer.writeLong(rangeCount);
+            trailer.write(MAGIC);
+            trailer.close();
+        }
+    }
+
+    // Reads the ranges of a store in order without loading it
+    static class Scanner implements Closeable {
+        private final DataInputStream in;
+        private long remaining;
+        private Range current = null;
+        private byte[] previousStart = EMPTY;
+
+        Scanner(File file) throws IOException {
+            remaining = Trailer.read(file).rangeCount;
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), IO_BUFFER_SIZE));
+            in.skipBytes(MAGIC.length);
+        }
+
+        boolean next() throws IOException {
+            if (remaining == 0) {
+                current = null;
+                return false;
+            }
+            remaining -= 1;
+
+            byte[] start = readRow(in, previousStart, WritableUtils.readVInt(in));
+            int endShared = WritableUtils.readVInt(in) - 1;
+            byte[] end = endShared < 0 ? null : readRow(in, start, endShared);
+
+            previousStart = start;
+            current = new Range(start, end);
+            return true;
+        }
+
+        Range current() {
+            return current;
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private static byte[] readRow(DataInput in, byte[] prefix, int shared) throws IOException {
+            byte[] row = new byte[shared + WritableUtils.readVInt(in)];
+            System.arraycopy(prefix, 0, row, 0, shared);
+            in.readFully(row, shared, row.length - shared);
+            return row;
+        }
+    }
+
+    private final byte[] data;
+    private final int indexOffset;
+    private final byte[][] groupRows;
+    private final int[] groupOffsets;
+    private final long rangeCount;
+
+    private LostKeyStore(byte[] data, String name) throws IOException {
+        this.data = data;
+
+        Trailer trailer = Trailer.parse(data, data.length - TRAILER_SIZE, name);
+        indexOffset = (int) trailer.indexOffset;
+        rangeCount = trailer.rangeCount;
+        groupRows = new byte[trailer.groupCount][];
+        groupOffsets = new int[trailer.groupCount];
+
+        int position = indexOffset;
+        for (int i = 0; i < trailer.groupCount; ++i) {
+            int length = (int) readVLong(position);
+            position += WritableUtils.decodeVIntSize(data[position]);
+            groupRows[i] = Arrays.copyOfRange(data, position, position + length);
+            position += length;
+            groupOffsets[i] = (int) readVLong(position);
+            position += WritableUtils.decodeVIntSize(data[position]);
+        }
+    }
+
+    // Loads the whole store, lookups do not touch the disk
+    static LostKeyStore open(File file) throws IOException {
+        if (file.length() > Integer.MAX_VALUE) {
+            throw new IOException("lost key store is too large to load: " + file);
+        }
+        byte[] data = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(data);
+        } finally {
+            in.close();
+        }
+        return new LostKeyStore(data, file.getPath());
+    }
+
+    long getRangeCount() {
+        return rangeCount;
+    }
+
+    // The range holding the row, null if no cells of the row were lost. Finds the group with a
+    // binary search over the index, then decodes the start rows of the group up to the row and
+    // only the end row of the last of them.
+    Range find(byte[] row) {
+        int low = 0;
+        int high = groupRows.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (Bytes.compareTo(groupRows[middle], row) <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        int group = low - 1;
+        if (group < 0) {
+            return null;
+        }
+
+        int position = groupOffsets[group];
+        int groupEnd = group + 1 < groupOffsets.length ? groupOffsets[group + 1] : indexOffset;
+
+        byte[] start = EMPTY;
+        int endPosition = -1;
+        byte[] candidate = null;
+
+        while (position < groupEnd) {
+            int shared = readVInt(position);
+            position += WritableUtils.decodeVIntSize(data[position]);
+            int suffix = readVInt(position);
+            position += WritableUtils.decodeVIntSize(data[position]);
+
+            byte[] next = new byte[shared + suffix];
+            System.arraycopy(start, 0, next, 0, shared);
+            System.arraycopy(data, position, next, shared, suffix);
+            position += suffix;
+            start = next;
+
+            if (Bytes.compareTo(start, row) > 0) {
+                break;
+            }
+
+            candidate = start;
+            endPosition = position;
+            position = skipEnd(position);
+        }
+
+        if (candidate == null) {
+            return null;
+        }
+
+        int endShared = readVInt(endPosition) - 1;
+        if (endShared < 0) {
+            return new Range(candidate, null);
+        }
+        endPosition += WritableUtils.decodeVIntSize(data[endPosition]);
+        int endSuffix = readVInt(endPosition);
+        endPosition += WritableUtils.decodeVIntSize(data[endPosition]);
+
+        byte[] end = new byte[endShared + endSuffix];
+        System.arraycopy(candidate, 0, end, 0, endShared);
+        System.arraycopy(data, endPosition, end, endShared, endSuffix);
+
+        return Bytes.compareTo(row, end) <= 0 ? new Range(candidate, end) : null;
+    }
+
+    boolean contains(byte[] row) {
+        return find(row) != null;
+    }
+
+    private int skipEnd(int position) {
+        int endShared = readVInt(position) - 1;
+        position += WritableUtils.decodeVIntSize(data[position]);
+        if (endShared < 0) {
+            return position;
+        }
+        int suffix = readVInt(position);
+        return position + WritableUtils.decodeVIntSize(data[position]) + suffix;
+    }
+
+    private int readVInt(int position) {
+        return (int) readVLong(position);
+    }
+
+    private long readVLong(int position) {
+        return HFileTail.readVLong(data, position);
+    }
+
+    private static int commonPrefix(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+        int i = 0;
+        while (i < length && a[i] == b[i]) {
+            ++i;
+        }
+        return i;
+    }
+
+    // Sorts ranges held in memory and writes them as a store
+    static long write(File file, List<Range> ranges) throws IOException {
+        List<Range> sorted = new ArrayList<Range>(ranges);
+        Collections.sort(sorted, START_ORDER);
+
+        Writer writer = new Writer(file);
+        for (Range range : sorted) {
+            writer.add(range);
+        }
+        writer.close();
+        return writer.getRangeCount();
+    }
+
+    // External k-way merge of sorted stores, at most MERGE_FAN_IN of them open at a time
+    static long merge(List<File> inputs, File output) throws IOException {
+        List<File> pending = inputs;
+        List<File> temporary = new ArrayList<File>();
+
+        try {
+            while (pending.size() > MERGE_FAN_IN) {
+                List<File> next = new ArrayList<File>();
+                for (int i = 0; i < pending.size(); i += MERGE_FAN_IN) {
+                    File pass = File.createTempFile("lostkeys", SUFFIX, output.getAbsoluteFile().getParentFile());
+                    temporary.add(pass);
+                    mergePass(pending.subList(i, Math.min(i + MERGE_FAN_IN, pending.size())), pass);
+                    next.add(pass);
+                }
+                log("merged", pending.size(), "stores into", next.size());
+                pending = next;
+            }
+            return mergePass(pending, output);
+        } finally {
+            for (File file : temporary) {
+                if (!file.delete()) {
+                    Log.warn("failed to delete temporary store", file);
+                }
+            }
+        }
+    }
+
+    private static long mergePass(List<File> inputs, File output) throws IOException {
+        PriorityQueue<Scanner> queue = new PriorityQueue<Scanner>(Math.max(1, inputs.size()), new Comparator<Scanner>() {
+            public int compare(Scanner a, Scanner b) {
+                return START_ORDER.compare(a.current(), b.current());
+            }
+        });
+        List<Scanner> scanners = new ArrayList<Scanner>();
+
+        try {
+            for (File input : inputs) {
+                Scanner scanner = new Scanner(input);
+                scanners.add(scanner);
+                if (scanner.next()) {
+                    queue.add(scanner);
+                }
+            }
+
+            Writer writer = new Writer(output);
+            while (!queue.isEmpty()) {
+                Scanner scanner = queue.poll();
+                writer.add(scanner.current());
+                if (scanner.next()) {
+                    queue.add(scanner);
+                }
+            }
+            writer.close();
+            return writer.getRangeCount();
+
+        } finally {
+            for (Scanner scanner : scanners) {
+                scanner.close();
+            }
+        }
+    }
+
+    // Store files given directly and the ones in the given directories
+    private static List<File> findStores(String[] paths, int from) {
+        List<File> stores = new ArrayList<File>();
+        for (int i = from; i < paths.length; ++i) {
+            File path = new File(paths[i]);
+            File[] files = path.isDirectory() ? path.listFiles() : new File[]{path};
+            if (files == null) {
+                continue;
+            }
+            Arrays.sort(files);
+            for (File file : files) {
+                if (file.isFile() && file.getName().endsWith(SUFFIX)) {
+                    stores.add(file);
+                }
+            }
+        }
+        return stores;
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        String command = args.length > 0 ? args[0] : "";
+        boolean argsValid = command.equals("merge") && args.length >= 3
+                || command.equals("query") && (args.length == 2 || args.length == 3)
+                || command.equals("dump") && args.length == 2;
+
+        if (!argsValid) {
+            Log.includeTimestamp = false;
+            log("arguments:");
+            log("\t merge OUTPUT INPUT... \t merge stores, INPUT is a store or a directory of *" + SUFFIX + " files");
+            log("\t query STORE [ROWS_FILE] \t print the rows of ROWS_FILE (default stdin) that lost cells");
+            log("\t dump STORE \t\t print the lost row ranges");
+            log("query and dump print their results to stdout and the log to stderr.");
+            log("Rows are one per line, in the escaped binary format of the HBase shell.");
+            exit(1);
+        }
+
+        if (!command.equals("merge")) {
+            // stdout carries the results, the log goes to stderr so it does not mix with them
+            Log.useStderr();
+        }
+
+        if (command.equals("merge")) {
+            File output = new File(args[1]);
+            List<File> inputs = findStores(args, 2);
+
+            long phaseStart = System.nanoTime();
+            long ranges = merge(inputs, output);
+            Metrics.histogram("phase.merge").updateSince(phaseStart);
+
+            log("merged", inputs.size(), "stores into", ranges, "lost row ranges in", output.getAbsolutePath());
+
+        } else if (command.equals("query")) {
+            LostKeyStore store = open(new File(args[1]));
+            BufferedReader rows = new BufferedReader(new InputStreamReader(args.length == 3 ? new FileInputStream(args[2]) : System.in), IO_BUFFER_SIZE);
+            PrintStream out = new PrintStream(new BufferedOutputStream(System.out, IO_BUFFER_SIZE), false);
+
+            long queried = 0;
+            long lost = 0;
+            long phaseStart = System.nanoTime();
+
+            for (String line = rows.readLine(); line != null; line = rows.readLine()) {
+                queried += 1;
+                Range range = store.find(Bytes.toBytesBinary(line));
+                if (range != null) {
+                    lost += 1;
+                    out.println(line + "\t" + range);
+                }
+            }
+            out.flush();
+            rows.close();
+
+            long elapsed = Math.max(1, System.nanoTime() - phaseStart);
+            log("checked", queried, "rows,", lost, "lost, at", queried * 1000000000L / elapsed, "rows per second");
+
+        } else {
+            Scanner scanner = new Scanner(new File(args[1]));
+            PrintStream out = new PrintStream(new BufferedOutputStream(System.out, IO_BUFFER_SIZE), false);
+            try {
+                while (scanner.next()) {
+                    out.println(scanner.current());
+                }
+            } finally {
+                out.flush();
+                scanner.close();
+            }
+        }
+
+        Metrics.logSummary();
+        exit(0);
+    }
+
+}
@@ -0,0 +1,287 @@
+package com.ambrella;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.hdfs.DFSClient;
+import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
+
+import static com.ambrella.Log.log;
+
+// Process wide counters and latency histograms of the recovery tools. Every metric is exported
+// as attributes of the com.ambrella:type=Metrics MBean, and a summary line is logged every
+// Config.Metrics.SUMMARY_INTERVAL_S seconds while the tool is running.
+//
+// Names used by the tools:
+//   bytes.read, bytes.written        counters of HDFS bytes
+//   blocks.salvaged, blocks.lost     data blocks copied to the output or replaced with zeros
+//   read.retries                     reads repeated after adding ranges to missing
+//   namenode.getBlockLocations       RPC latency
+//   datanode.HOST:PORT.read          read latency of a single datanode, where the datanode is known
+//   phase.*                          time spent in index.load, availability, read, write, verify
+// Histograms record microseconds.
+public class Metrics {
+
+    public static class Counter {
+        private final AtomicLong value = new AtomicLong();
+
+        public void inc() {
+            value.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            value.addAndGet(delta);
+        }
+
+        public long get() {
+            return value.get();
+        }
+    }
+
+    // Power of two buckets, exact count, sum and max, approximate percentiles
+    public static class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        public void update(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value) - (value == 0 ? 0 : 1));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+
+            long current;
+            while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+                // retry
+            }
+        }
+
+        // Records the microseconds since startNanos, taken from System.nanoTime()
+        public void updateSince(long startNanos) {
+            update((System.nanoTime() - startNanos) / 1000);
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getSum() {
+            return sum.get();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        public double getMean() {
+            long n = count.get();
+            return n == 0 ? 0 : (double) sum.get() / n;
+        }
+
+        // Upper bound of the bucket holding the given fraction of values
+        public long getPercentile(double fraction) {
+            long n = count.get();
+            if (n == 0) {
+                return 0;
+            }
+            long threshold = (long) Math.ceil(n * fraction);
+            long seen = 0;
+            for (int i = 0; i < 64; ++i) {
+                seen += buckets.get(i);
+                if (seen >= threshold) {
+                    return Math.min(i == 63 ? Long.MAX_VALUE : (1L << (i + 1)) - 1, max.get());
+                }
+            }
+            return max.get();
+        }
+    }
+
+    private static final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+    private static final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+    private static final long startTime = System.currentTimeMillis();
+
+    // counter values at the previous summary line, for the rates
+    private static final Map<String, Long> lastValues = new TreeMap<String, Long>();
+    private static long lastSummaryTime = startTime;
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(), new ObjectName("com.ambrella:type=Metrics"));
+        } catch (Exception e) {
+            Log.warn("failed to register metrics MBean:", e);
+        }
+
+        if (Config.Metrics.SUMMARY_INTERVAL_S > 0) {
+            ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "metrics-summary");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            scheduler.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    logSummary();
+                }
+            }, Config.Metrics.SUMMARY_INTERVAL_S, Config.Metrics.SUMMARY_INTERVAL_S, TimeUnit.SECONDS);
+        }
+    }
+
+    public static Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            Counter created = new Counter();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    public static Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = histograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    // Records the read latency of the datanode the stream currently reads from, if it is an HDFS stream
+    static void datanodeRead(FSDataInputStream stream, long startNanos) {
+        if (stream instanceof DFSClient.DFSDataInputStream) {
+            DatanodeInfo datanode = ((DFSClient.DFSDataInputStream) stream).getCurrentDatanode();
+            if (datanode != null) {
+                histogram("datanode." + datanode.getName() + ".read").updateSince(startNanos);
+            }
+        }
+    }
+
+    // Counters with rates since the previous summary, and phase and RPC latencies.
+    // Per-datanode histograms are only available over JMX.
+    static synchronized void logSummary() {
+        long now = System.currentTimeMillis();
+        double seconds = Math.max(1, now - lastSummaryTime) / 1000.0;
+
+        StringBuilder line = new StringBuilder("metrics after " + (now - startTime) / 1000 + "s:");
+
+        for (Map.Entry<String, Counter> entry : new TreeMap<String, Counter>(counters).entrySet()) {
+            long value = entry.getValue().get();
+            Long last = lastValues.put(entry.getKey(), value);
+            long delta = value - (last == null ? 0 : last);
+
+            line.append(' ').append(entry.getKey()).append('=');
+            if (entry.getKey().startsWith("bytes.")) {
+                line.append(Utils.formatFileSize(value)).append(" (").append(Utils.formatFileSize((long) (delta / seconds))).append("/s)");
+            } else {
+                line.append(value);
+            }
+        }
+
+        for (Map.Entry<String, Histogram> entry : new TreeMap<String, Histogram>(histograms).entrySet()) {
+            if (entry.getKey().startsWith("datanode.")) {
+                continue;
+            }
+            Histogram histogram = entry.getValue();
+            line.append(' ').append(entry.getKey()).append("[n=").append(histogram.getCount())
+                    .append(" total=").append(histogram.getSum() / 1000).append("ms")
+                    .append(" p50=").append(histogram.getPercentile(0.5)).append("us")
+                    .append(" p99=").append(histogram.getPercentile(0.99)).append("us")
+                    .append(" max=").append(histogram.getMax()).append("us]");
+        }
+
+        lastSummaryTime = now;
+
+        log(line);
+    }
+
+    // Flat attribute view: a counter is one attribute, a histogram is NAME.count, NAME.mean,
+    // NAME.p50, NAME.p99 and NAME.max.
+    private static class MBean implements DynamicMBean {
+
+        private static final String[] HISTOGRAM_FIELDS = {"count", "mean", "p50", "p99", "max"};
+
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Counter counter = counters.get(attribute);
+            if (counter != null) {
+                return counter.get();
+            }
+
+            int dot = attribute.lastIndexOf('.');
+            Histogram histogram = dot < 0 ? null : histograms.get(attribute.substring(0, dot));
+            if (histogram != null) {
+                String field = attribute.substring(dot + 1);
+                if (field.equals("count")) {
+                    return histogram.getCount();
+                } else if (field.equals("mean")) {
+                    return (long) histogram.getMean();
+                } else if (field.equals("p50")) {
+                    return histogram.getPercentile(0.5);
+                } else if (field.equals("p99")) {
+                    return histogram.getPercentile(0.99);
+                } else if (field.equals("max")) {
+                    return histogram.getMax();
+                }
+            }
+
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("metrics are read only: " + attribute.getName());
+        }
+
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                try {
+                    list.add(new Attribute(attribute, getAttribute(attribute)));
+                } catch (AttributeNotFoundException e) {
+                    // skipped, as the interface requires
+                }
+            }
+            return list;
+        }
+
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+
+            for (String name : new TreeMap<String, Counter>(counters).keySet()) {
+                attributes.add(new MBeanAttributeInfo(name, "java.lang.Long", "counter", true, false, false));
+            }
+            for (String name : new TreeMap<String, Histogram>(histograms).keySet()) {
+                for (String field : HISTOGRAM_FIELDS) {
+                    attributes.add(new MBeanAttributeInfo(name + "." + field, "java.lang.Long", "histogram " + field, true, false, false));
+                }
+            }
+
+            return new MBeanInfo(Metrics.class.getName(), "HBase recovery tools metrics",
+                    attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+        }
+    }
+
+}
@@ -0,0 +1,178 @@
+package com.ambrella;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// The lost keys of one rewritten file. Every lost block is written as a line with its first key
+// to the text log, as before, and as a row range to a binary spool, LOG.spool. Both go through
+// buffers that sync() flushes for the journal. finish() sorts the spool into a LostKeyStore,
+// LOG.lks, and deletes it; the spool is kept while the rewrite runs so a resumed rewrite can
+// append to it.
+public class MissingLog {
+
+    static final String SPOOL_SUFFIX = ".spool";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File file;
+    private final FileOutputStream textFile;
+    private final FileOutputStream spoolFile;
+    private final OutputStream text;
+    private final DataOutputStream spool;
+
+    // row of the last key of the input, ends the range of its last block
+    private byte[] lastRow = null;
+
+    private MissingLog(File file, FileOutputStream textFile, FileOutputStream spoolFile, OutputStream text, OutputStream spool) {
+        this.file = file;
+        this.textFile = textFile;
+        this.spoolFile = spoolFile;
+        this.text = text;
+        this.spool = new DataOutputStream(spool);
+    }
+
+    private MissingLog(File file, FileOutputStream textFile, FileOutputStream spoolFile) {
+        this(file, textFile, spoolFile, new BufferedOutputStream(textFile, BUFFER_SIZE), new BufferedOutputStream(spoolFile, BUFFER_SIZE));
+    }
+
+    static MissingLog create(File file) throws IOException {
+        return new MissingLog(file, new FileOutputStream(file, false), new FileOutputStream(spoolFile(file), false));
+    }
+
+    // Continues the logs of an interrupted rewrite, dropping what was written after its last checkpoint
+    static MissingLog resume(File file, long textOffset, long spoolOffset) throws IOException {
+        truncate(file, textOffset);
+        truncate(spoolFile(file), spoolOffset);
+        return new MissingLog(file, new FileOutputStream(file, true), new FileOutputStream(spoolFile(file), true));
+    }
+
+    // Kept in memory only, for benchmarks
+    static MissingLog inMemory() {
+        return new MissingLog(null, null, null, new ByteArrayOutputStream(), new ByteArrayOutputStream());
+    }
+
+    static File spoolFile(File file) {
+        return new File(file.getPath() + SPOOL_SUFFIX);
+    }
+
+    static File storeFile(File file) {
+        return new File(file.getPath() + LostKeyStore.SUFFIX);
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+        try {
+            truncated.setLength(length);
+        } finally {
+            truncated.close();
+        }
+    }
+
+    // Reads the last key of the input from its file info, so the range of a lost last block
+    // ends there instead of running to the end of the table
+    void readLastKey(FileSystem fs, Path input) {
+        try {
+            byte[] lastKey = HFileTail.read(fs, input).fileInfo.get(Utils.FileInfo.LASTKEY);
+            lastRow = lastKey == null ? null : row(lastKey);
+        } catch (IOException e) {
+            Log.warn("failed to read the last key of", input + ", a lost last block is logged up to the end of the table:", e.getMessage());
+        }
+    }
+
+    // key is the first key of the lost block, nextKey the first key of the next one or null
+    // for the last block
+    synchronized void add(byte[] key, byte[] nextKey) throws IOException {
+        text.write((KeyValue.keyToString(key) + "\n").getBytes());
+
+        byte[] start = row(key);
+        byte[] end = nextKey != null ? row(nextKey) : lastRow;
+
+        WritableUtils.writeVInt(spool, start.length);
+        spool.write(start);
+        if (end == null) {
+            WritableUtils.writeVInt(spool, 0);
+        } else {
+            WritableUtils.writeVInt(spool, end.length + 1);
+            spool.write(end);
+        }
+    }
+
+    // Flushes and syncs both logs for a checkpoint
+    synchronized void sync() throws IOException {
+        text.flush();
+        spool.flush();
+        if (textFile != null) {
+            textFile.getFD().sync();
+            spoolFile.getFD().sync();
+        }
+    }
+
+    long getTextOffset() throws IOException {
+        return textFile == null ? 0 : textFile.getChannel().position();
+    }
+
+    long getSpoolOffset() throws IOException {
+        return spoolFile == null ? 0 : spoolFile.getChannel().position();
+    }
+
+    synchronized void close() throws IOException {
+        text.close();
+        spool.close();
+    }
+
+    // Closes the logs and sorts the spool into the lost key store, returns the number of ranges
+    long finish() throws IOException {
+        close();
+        if (file == null) {
+            return 0;
+        }
+
+        // one range per lost block, small enough to sort in memory
+        List<LostKeyStore.Range> ranges = new ArrayList<LostKeyStore.Range>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(spoolFile(file)), BUFFER_SIZE));
+        try {
+            while (true) {
+                int startLength;
+                try {
+                    startLength = WritableUtils.readVInt(in);
+                } catch (EOFException e) {
+                    // end of the spool, an end of file inside a range is an error
+                    break;
+                }
+                byte[] start = new byte[startLength];
+                in.readFully(start);
+                int endLength = WritableUtils.readVInt(in) - 1;
+                byte[] end = null;
+                if (endLength >= 0) {
+                    end = new byte[endLength];
+                    in.readFully(end);
+                }
+                ranges.add(new LostKeyStore.Range(start, end));
+            }
+        } finally {
+            in.close();
+        }
+
+        long written = LostKeyStore.write(storeFile(file), ranges);
+
+        if (!spoolFile(file).delete()) {
+            Log.warn("failed to delete lost keys spool", spoolFile(file));
+        }
+
+        return written;
+    }
+
+    private static byte[] row(byte[] key) {
+        short rowLength = Bytes.toShort(key, 0);
+        return Arrays.copyOfRange(key, Bytes.SIZEOF_SHORT, Bytes.SIZEOF_SHORT + rowLength);
+    }
+
+}
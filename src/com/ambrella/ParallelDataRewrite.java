@@ -0,0 +1,314 @@
+package com.ambrella;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.*;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static com.ambrella.Log.log;
+import static com.ambrella.Utils.formatFileSize;
+
+// Rewrites a store file like DataRewrite, but reads spans of data blocks concurrently with
+// positional reads. A span ends with the last data block that ends in the HDFS block where the
+// span starts, so its read touches a single HDFS block unless one data block itself straddles a
+// boundary. Spans are written back in their original order, so the output is identical to the
+// one of the sequential rewrite.
+public class ParallelDataRewrite {
+
+    // HDFS blocks larger than this are split into several spans to keep memory use bounded
+    static final long MAX_SPAN_SIZE = 64 * 1024 * 1024;
+
+    static class Span {
+        final int firstBlock;
+        final int endBlock;
+        final long offset;
+        final long length;
+
+        Span(int firstBlock, int endBlock, long offset, long length) {
+            this.firstBlock = firstBlock;
+            this.endBlock = endBlock;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    static class SpanResult {
+        final byte[] data;
+        final int blockCount;
+        final List<Integer> lostBlocks;
+
+        SpanResult(byte[] data, int blockCount, List<Integer> lostBlocks) {
+            this.data = data;
+            this.blockCount = blockCount;
+            this.lostBlocks = lostBlocks;
+        }
+    }
+
+    static List<Span> splitSpans(Utils.Index index, long hdfsBlockSize, long maxSpanSize) {
+        List<Span> spans = new ArrayList<Span>();
+
+        int first = 0;
+        for (int i = 1; i <= index.getLength(); ++i) {
+            boolean split = i == index.getLength()
+                    || (index.getOffset(i) + index.getSize(i) - 1) / hdfsBlockSize != index.getOffset(first) / hdfsBlockSize
+                    || index.getOffset(i) + index.getSize(i) - index.getOffset(first) > maxSpanSize;
+
+            if (split) {
+                long offset = index.getOffset(first);
+                long length = index.getOffset(i - 1) + index.getSize(i - 1) - offset;
+                spans.add(new Span(first, i, offset, length));
+                first = i;
+            }
+        }
+
+        return spans;
+    }
+
+    static DataRewrite.Result rewrite(Configuration conf, FileSystem fs, Path file, Path output, MissingLog missingLog, int threads) throws IOException, IllegalAccessException, ClassNotFoundException, NoSuchFieldException {
+        return rewrite(conf, fs, file, output, missingLog, threads, null, null, null);
+    }
+
+    // Checkpoints to the journal after spans if it is not null, continues from state if it is not null,
+    // takes lost blocks from backup if it is not null
+    static DataRewrite.Result rewrite(Configuration conf, final FileSystem fs, Path file, Path output, MissingLog missingLog, int threads, RewriteJournal journal, RewriteJournal.State state, final BackupSource backup) throws IOException, IllegalAccessException, ClassNotFoundException, NoSuchFieldException {
+
+        long phaseStart = System.nanoTime();
+        final Utils.Index index = Utils.readHFileIndex(conf, file);
+        Metrics.histogram("phase.index.load").updateSince(phaseStart);
+
+        final FileStatus status = fs.getFileStatus(file);
+        long totalSize = status.getLen();
+
+        log("Input file size:", formatFileSize(totalSize));
+
+        List<Span> spans = splitSpans(index, status.getBlockSize(), MAX_SPAN_SIZE);
+        if (state != null) {
+            spans = spansFrom(spans, index, state.nextBlock);
+        }
+
+        log("Starting to process total " + totalSize + " bytes in " + spans.size() + " spans");
+
+        phaseStart = System.nanoTime();
+        final IntervalSet missingRanges = BlockAvailabilityMap.build(conf, fs, file).getMissingRanges();
+        Metrics.histogram("phase.availability").updateSince(phaseStart);
+        if (state != null) {
+            for (int i = 0; i < state.missingRanges.size(); ++i) {
+                missingRanges.add(state.missingRanges.getStart(i), state.missingRanges.getEnd(i));
+            }
+        }
+
+        log("Known missing ranges:", missingRanges);
+
+        final FSDataInputStream inputStream = fs.open(file);
+        final HedgedReader reader = HedgedReader.open(conf, fs, file, inputStream);
+        FSDataOutputStream outputStream = journal != null ? journal.openOutput(fs, state) : fs.create(output);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        LinkedList<Future<SpanResult>> pending = new LinkedList<Future<SpanResult>>();
+
+        int lostKeysCount = state != null ? state.lostKeys : 0;
+
+        try {
+            int nextSpan = 0;
+
+            for (int s = 0; s < spans.size(); ++s) {
+
+                // keep at most two spans per reader in memory
+                while (nextSpan < spans.size() && pending.size() < threads * 2) {
+                    final Span span = spans.get(nextSpan++);
+                    pending.add(executor.submit(new Callable<SpanResult>() {
+                        public SpanResult call() throws IOException {
+                            return readSpan(fs, status, reader, index, span, missingRanges, backup);
+                        }
+                    }));
+                }
+
+                SpanResult result = getResult(pending.removeFirst());
+
+                writeResult(result, index, outputStream, missingLog);
+                lostKeysCount += result.lostBlocks.size();
+
+                DataRewrite.logProgress(outputStream.getPos(), totalSize);
+
+                if (journal != null && journal.isDue(outputStream.getPos())) {
+                    checkpoint(journal, outputStream, spans.get(s).endBlock, lostKeysCount, missingRanges);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        int last = (int) (index.getLength() - 1);
+        DataRewrite.copyTrailer(inputStream, outputStream, index.getOffset(last) + index.getSize(last), totalSize);
+
+        inputStream.close();
+        outputStream.sync();
+        outputStream.close();
+
+        if (journal != null) {
+            journal.finishOutput(fs);
+        }
+
+        return new DataRewrite.Result(index.getLength(), lostKeysCount);
+    }
+
+    // Writes the framed blocks of a span and logs its lost keys
+    static void writeResult(SpanResult result, Utils.Index index, FSDataOutputStream outputStream, MissingLog missingLog) throws IOException {
+        for (int i : result.lostBlocks) {
+            DataRewrite.logLostKey(missingLog, index, i);
+        }
+
+        long writeStart = System.nanoTime();
+        outputStream.write(result.data);
+        Metrics.histogram("phase.write").updateSince(writeStart);
+        Metrics.counter("bytes.written").add(result.data.length);
+        Metrics.counter("blocks.salvaged").add(result.blockCount - result.lostBlocks.size());
+    }
+
+    // Checkpoints with a copy of the missing ranges, readers keep adding to them
+    static void checkpoint(RewriteJournal journal, FSDataOutputStream outputStream, int nextBlock, int lostKeysCount, IntervalSet missingRanges) throws IOException {
+        IntervalSet knownMissing;
+        synchronized (missingRanges) {
+            knownMissing = new IntervalSet(missingRanges);
+        }
+        journal.checkpoint(outputStream, nextBlock, lostKeysCount, knownMissing);
+    }
+
+    // Spans covering the blocks from first on, the span containing first is shortened to start at it
+    static List<Span> spansFrom(List<Span> spans, Utils.Index index, int first) {
+        List<Span> result = new ArrayList<Span>();
+        for (Span span : spans) {
+            if (span.endBlock <= first) {
+                continue;
+            }
+            if (span.firstBlock < first) {
+                long offset = index.getOffset(first);
+                result.add(new Span(first, span.endBlock, offset, span.offset + span.length - offset));
+            } else {
+                result.add(span);
+            }
+        }
+        return result;
+    }
+
+    private static SpanResult getResult(Future<SpanResult> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted while waiting for span read", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private static SpanResult readSpan(FileSystem fs, FileStatus status, PositionedReadable stream, Utils.Index index, Span span, IntervalSet missingRanges, BackupSource backup) throws IOException {
+        byte[] data = new byte[(int) span.length];
+        boolean spanRead = readSpanData(stream, span, data, missingRanges);
+        return frameSpan(fs, status, stream, index, span, data, spanRead, missingRanges, backup);
+    }
+
+    // Reads the raw bytes of the span with one positional read, returns false if the span
+    // is known to be missing or the read failed.
+    static boolean readSpanData(PositionedReadable stream, Span span, byte[] data, IntervalSet missingRanges) {
+        if (isMissing(missingRanges, span.offset, span.offset + span.length)) {
+            return false;
+        }
+
+        try {
+            long readStart = System.nanoTime();
+            stream.readFully(span.offset, data, 0, (int) span.length);
+            Metrics.histogram("phase.read").updateSince(readStart);
+            Metrics.counter("bytes.read").add(span.length);
+            return true;
+        } catch (IOException e) {
+            Metrics.counter("read.retries").inc();
+            log("failed to read span at offset=" + span.offset + ", reading its blocks one by one:", e.getMessage());
+            return false;
+        }
+    }
+
+    // Re-frames the blocks of a span read by readSpanData in place. Blocks of a span that was
+    // not read, or whose header does not match the index, are read one by one, then from the
+    // backup if there is one; the ones that can not be read are framed with zeroed data and
+    // reported as lost.
+    static SpanResult frameSpan(FileSystem fs, FileStatus status, PositionedReadable stream, Utils.Index index, Span span, byte[] data, boolean spanRead, IntervalSet missingRanges, BackupSource backup) throws IOException {
+
+        List<Integer> lostBlocks = new ArrayList<Integer>();
+
+        for (int i = span.firstBlock; i < span.endBlock; ++i) {
+            byte[] key = index.getKey(i);
+            int position = (int) (index.getOffset(i) - span.offset);
+            int blockSize = (int) index.getSize(i);
+
+            boolean framed = spanRead && Bytes.toInt(data, position + C.DATABLOCKMAGIC.length) == key.length;
+
+            if (framed) {
+                DataRewrite.frameBlock(data, position, key, Bytes.toInt(data, position + C.DATABLOCKMAGIC.length + 4));
+            } else if (!readBlock(fs, status, stream, index.getOffset(i), blockSize, key, data, position, missingRanges)
+                    && (backup == null || !backup.readBlock(key, blockSize, data, position))) {
+                frameLostBlock(data, position, key, blockSize - key.length - DataRewrite.BLOCK_HEADER_SIZE);
+                lostBlocks.add(i);
+            }
+        }
+
+        return new SpanResult(data, span.endBlock - span.firstBlock, lostBlocks);
+    }
+
+    // Reads a single data block into data[position..] the same way DataRewrite does,
+    // returns false if the block is not readable.
+    private static boolean readBlock(FileSystem fs, FileStatus status, PositionedReadable stream, long offset, int blockSize, byte[] key, byte[] data, int position, IntervalSet missingRanges) throws IOException {
+
+        if (isMissing(missingRanges, offset, offset + blockSize)) {
+            return false;
+        }
+
+        try {
+            byte[] header = new byte[DataRewrite.BLOCK_HEADER_SIZE];
+            stream.readFully(offset, header, 0, header.length);
+            int keySize = Bytes.toInt(header, C.DATABLOCKMAGIC.length);
+            int firstRecordDataSize = Bytes.toInt(header, C.DATABLOCKMAGIC.length + 4);
+
+            int size = blockSize - key.length - DataRewrite.BLOCK_HEADER_SIZE;
+            stream.readFully(offset + DataRewrite.BLOCK_HEADER_SIZE + keySize, data, position + DataRewrite.BLOCK_HEADER_SIZE + key.length, size);
+            Metrics.counter("bytes.read").add(header.length + size);
+
+            DataRewrite.frameBlock(data, position, key, firstRecordDataSize);
+            return true;
+
+        } catch (IOException e) {
+
+            BlockLocation[] locations = fs.getFileBlockLocations(status, offset, blockSize);
+
+            synchronized (missingRanges) {
+                for (BlockLocation loc : locations) {
+                    log("adding range to missing:", IntervalSet.toString(loc.getOffset(), loc.getOffset() + loc.getLength()));
+                    missingRanges.add(loc.getOffset(), loc.getOffset() + loc.getLength());
+                }
+            }
+
+            return false;
+        }
+    }
+
+    private static boolean isMissing(IntervalSet missingRanges, long start, long end) {
+        synchronized (missingRanges) {
+            return missingRanges.intersects(start, end);
+        }
+    }
+
+    private static void frameLostBlock(byte[] data, int position, byte[] key, int size) {
+        DataRewrite.frameBlock(data, position, key, size);
+        int dataStart = position + DataRewrite.BLOCK_HEADER_SIZE + key.length;
+        Arrays.fill(data, dataStart, dataStart + size, (byte) 0);
+    }
+
+}
@@ -0,0 +1,188 @@
+package com.ambrella;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.ambrella.Log.log;
+import static com.ambrella.Utils.formatFileSize;
+
+// Rewrites a store file like DataRewrite in three overlapping stages, so the HDFS read latency
+// and the replication latency of the write pipeline do not add up. A read-ahead thread fetches
+// spans of up to COPY_BUFFER_SIZE bytes with positional reads, a framing thread re-frames their
+// blocks and re-reads the ones that need it, and the calling thread writes them out in order.
+// The stages are connected by bounded queues: at most depth spans are read ahead, so at most
+// depth + 5 spans are in memory at a time. The output is the same as the sequential one.
+public class PipelinedDataRewrite {
+
+    static final int DEFAULT_DEPTH = 4;
+
+    private static final int FRAMED_QUEUE_SIZE = 2;
+
+    // A span moving through the stages. The item without a span ends the pipeline, an item
+    // with a failure ends it early.
+    private static class Item {
+        final ParallelDataRewrite.Span span;
+        byte[] data;
+        boolean read;
+        ParallelDataRewrite.SpanResult result;
+        IOException failure;
+
+        Item(ParallelDataRewrite.Span span) {
+            this.span = span;
+        }
+    }
+
+    static DataRewrite.Result rewrite(Configuration conf, FileSystem fs, Path file, Path output, MissingLog missingLog, int depth) throws IOException, IllegalAccessException, ClassNotFoundException, NoSuchFieldException {
+        return rewrite(conf, fs, file, output, missingLog, depth, null, null, null);
+    }
+
+    // Checkpoints to the journal after spans if it is not null, continues from state if it is not null,
+    // takes lost blocks from backup if it is not null
+    static DataRewrite.Result rewrite(Configuration conf, final FileSystem fs, Path file, Path output, MissingLog missingLog, int depth, RewriteJournal journal, RewriteJournal.State state, final BackupSource backup) throws IOException, IllegalAccessException, ClassNotFoundException, NoSuchFieldException {
+
+        long phaseStart = System.nanoTime();
+        final Utils.Index index = Utils.readHFileIndex(conf, file);
+        Metrics.histogram("phase.index.load").updateSince(phaseStart);
+
+        final FileStatus status = fs.getFileStatus(file);
+        long totalSize = status.getLen();
+
+        log("Input file size:", formatFileSize(totalSize));
+
+        List<ParallelDataRewrite.Span> spans = ParallelDataRewrite.splitSpans(index, status.getBlockSize(), DataRewrite.COPY_BUFFER_SIZE);
+        if (state != null) {
+            spans = ParallelDataRewrite.spansFrom(spans, index, state.nextBlock);
+        }
+        final List<ParallelDataRewrite.Span> pipelineSpans = spans;
+
+        log("Starting to process total " + totalSize + " bytes in " + spans.size() + " spans, reading up to " + depth + " spans ahead");
+
+        phaseStart = System.nanoTime();
+        final IntervalSet missingRanges = BlockAvailabilityMap.build(conf, fs, file).getMissingRanges();
+        Metrics.histogram("phase.availability").updateSince(phaseStart);
+        if (state != null) {
+            for (int i = 0; i < state.missingRanges.size(); ++i) {
+                missingRanges.add(state.missingRanges.getStart(i), state.missingRanges.getEnd(i));
+            }
+        }
+
+        log("Known missing ranges:", missingRanges);
+
+        FSDataInputStream inputStream = fs.open(file);
+        final HedgedReader reader = HedgedReader.open(conf, fs, file, inputStream);
+        FSDataOutputStream outputStream = journal != null ? journal.openOutput(fs, state) : fs.create(output);
+
+        final BlockingQueue<Item> readQueue = new ArrayBlockingQueue<Item>(depth);
+        final BlockingQueue<Item> framedQueue = new ArrayBlockingQueue<Item>(FRAMED_QUEUE_SIZE);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        int lostKeysCount = state != null ? state.lostKeys : 0;
+
+        try {
+            executor.submit(new Runnable() {
+                public void run() {
+                    try {
+                        try {
+                            for (ParallelDataRewrite.Span span : pipelineSpans) {
+                                Item item = new Item(span);
+                                item.data = new byte[(int) span.length];
+                                item.read = ParallelDataRewrite.readSpanData(reader, span, item.data, missingRanges);
+                                readQueue.put(item);
+                            }
+                            readQueue.put(new Item(null));
+                        } catch (InterruptedException e) {
+                            throw e;
+                        } catch (Throwable e) {
+                            // an Error as well, e.g. OutOfMemoryError from a span buffer, or
+                            // the writer would wait for the next item forever
+                            Item failed = new Item(null);
+                            failed.failure = new IOException("read-ahead failed", e);
+                            readQueue.put(failed);
+                        }
+                    } catch (InterruptedException e) {
+                        // the writer stopped the pipeline
+                    }
+                }
+            });
+
+            executor.submit(new Runnable() {
+                public void run() {
+                    try {
+                        while (true) {
+                            Item item = readQueue.take();
+                            if (item.span != null && item.failure == null) {
+                                try {
+                                    item.result = ParallelDataRewrite.frameSpan(fs, status, reader, index, item.span, item.data, item.read, missingRanges, backup);
+                                } catch (IOException e) {
+                                    item.failure = e;
+                                } catch (Throwable e) {
+                                    item.failure = new IOException("framing failed", e);
+                                }
+                                item.data = null;
+                            }
+                            framedQueue.put(item);
+                            if (item.span == null || item.failure != null) {
+                                return;
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        // the writer stopped the pipeline
+                    }
+                }
+            });
+
+            while (true) {
+                long waitStart = System.nanoTime();
+                Item item = framedQueue.take();
+                Metrics.histogram("pipeline.write.wait").updateSince(waitStart);
+
+                if (item.failure != null) {
+                    throw item.failure;
+                }
+                if (item.span == null) {
+                    break;
+                }
+
+                ParallelDataRewrite.writeResult(item.result, index, outputStream, missingLog);
+                lostKeysCount += item.result.lostBlocks.size();
+
+                DataRewrite.logProgress(outputStream.getPos(), totalSize);
+
+                if (journal != null && journal.isDue(outputStream.getPos())) {
+                    ParallelDataRewrite.checkpoint(journal, outputStream, item.span.endBlock, lostKeysCount, missingRanges);
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted while waiting for framed spans");
+        } finally {
+            executor.shutdownNow();
+        }
+
+        int last = (int) (index.getLength() - 1);
+        DataRewrite.copyTrailer(inputStream, outputStream, index.getOffset(last) + index.getSize(last), totalSize);
+
+        inputStream.close();
+        outputStream.sync();
+        outputStream.close();
+
+        if (journal != null) {
+            journal.finishOutput(fs);
+        }
+
+        return new DataRewrite.Result(index.getLength(), lostKeysCount);
+    }
+
+}
@@ -0,0 +1,267 @@
+package com.ambrella;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.*;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.ambrella.Log.log;
+import static com.ambrella.Utils.exit;
+import static com.ambrella.Utils.formatFileSize;
+
+// End-to-end benchmark of the recovery tools over a synthetic table read through
+// FaultInjectingFileSystem. The corpus is generated once per DIR and seed, so runs with
+// different fault settings or tool versions process the same bytes.
+public class RecoveryBenchmark {
+
+    // Time and processed bytes of one tool over the whole corpus
+    static class Phase {
+        final String name;
+        long nanos = 0;
+        long bytes = 0;
+        int files = 0;
+        int failures = 0;
+
+        Phase(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            double seconds = nanos / 1e9;
+            return String.format("%-42s %4d files %4d failed %10.2f s %12s %12s/s", name, files, failures, seconds,
+                    formatFileSize(bytes), formatFileSize(seconds > 0 ? (long) (bytes / seconds) : 0));
+        }
+    }
+
+    private static void setRatio(Configuration conf, String name, String value) {
+        conf.set(name, Float.toString(Float.parseFloat(value)));
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        SyntheticHFileGenerator.Layout layout = new SyntheticHFileGenerator.Layout();
+        File dir = new File(System.getProperty("java.io.tmpdir"), "hbaserecovery-recovery-benchmark");
+        int threads = 4;
+
+        Configuration conf = new Configuration();
+        FaultInjectingFileSystem.register(conf);
+        conf.set("faulty.missing.ratio", "0.05");
+
+        boolean argsValid = true;
+        try {
+            int i = 0;
+            while (i < args.length && argsValid) {
+                int next = SyntheticHFileGenerator.parseLayout(args, i, layout);
+                if (next != i) {
+                    i = next;
+                    continue;
+                }
+                if (i + 1 >= args.length) {
+                    argsValid = false;
+                } else if (args[i].equals("-d")) {
+                    dir = new File(args[i + 1]);
+                } else if (args[i].equals("-p")) {
+                    threads = Integer.parseInt(args[i + 1]);
+                } else if (args[i].equals("-m")) {
+                    setRatio(conf, "faulty.missing.ratio", args[i + 1]);
+                } else if (args[i].equals("-e")) {
+                    setRatio(conf, "faulty.error.ratio", args[i + 1]);
+                } else if (args[i].equals("-w")) {
+                    String[] slow = args[i + 1].split(",");
+                    setRatio(conf, "faulty.slow.ratio", slow[0]);
+                    if (slow.length > 1) {
+                        conf.setLong("faulty.slow.ms", Long.parseLong(slow[1]));
+                    }
+                } else if (args[i].equals("-h")) {
+                    conf.setLong("faulty.block.size", Long.parseLong(args[i + 1]));
+                } else if (args[i].equals("-t")) {
+                    conf.set("faulty.target", args[i + 1]);
+                } else {
+                    argsValid = false;
+                }
+                i += 2;
+            }
+        } catch (NumberFormatException e) {
+            argsValid = false;
+        }
+
+        if (!argsValid) {
+            Log.includeTimestamp = false;
+            log("args: [-d DIR] [-p THREADS] [-m MISSING_RATIO] [-e ERROR_RATIO] [-w SLOW_RATIO[,SLOW_MS]] [-h HDFS_BLOCK_SIZE] [-t TARGET_FS] [generator options]");
+            log("Generates a synthetic table in DIR if it is not there yet, and times DataRewrite, DataComparison,");
+            log("FileExtraction and GenerateRegionInfo over it with simulated HDFS failures.");
+            log("Options:");
+            log("\t -d \t corpus directory (default java.io.tmpdir)");
+            log("\t -p \t threads of the parallel tools (default 4)");
+            log("\t -m \t fraction of HDFS blocks without replicas (default 0.05)");
+            log("\t -e \t probability of an IOException on a read (default 0)");
+            log("\t -w \t probability of a slow read and its delay in ms (default 0,100)");
+            log("\t -h \t simulated HDFS block size in bytes (default 1048576)");
+            log("\t -t \t file system to wrap, e.g. the hdfs:// URI of a MiniDFSCluster (default file:///)");
+            log("Generator options:");
+            SyntheticHFileGenerator.logLayoutUsage();
+            exit(1);
+        }
+
+        FileSystem fs = FileSystem.get(URI.create(FaultInjectingFileSystem.SCHEME + ":///"), conf);
+
+        Path corpus = fs.makeQualified(new Path(dir.getAbsolutePath(), "seed-" + layout.seed + "/table"));
+        Path outputDir = fs.makeQualified(new Path(dir.getAbsolutePath(), "output"));
+        File extractionDir = new File(dir, "extracted");
+
+        if (!fs.exists(corpus)) {
+            SyntheticHFileGenerator.generateTable(fs, corpus, layout);
+        } else {
+            log("using existing corpus", corpus);
+        }
+
+        fs.delete(outputDir, true);
+        fs.mkdirs(outputDir);
+
+        List<FileStatus> storeFiles = new ArrayList<FileStatus>();
+        List<Path> regionDirs = new ArrayList<Path>();
+        for (FileStatus region : fs.listStatus(corpus)) {
+            regionDirs.add(region.getPath());
+            for (FileStatus storeFile : fs.listStatus(new Path(region.getPath(), "att"))) {
+                storeFiles.add(storeFile);
+            }
+        }
+
+        log("benchmarking", storeFiles.size(), "store files,", "missing ratio", conf.get("faulty.missing.ratio"),
+                "error ratio", conf.get("faulty.error.ratio", "0"), "slow ratio", conf.get("faulty.slow.ratio", "0"));
+
+        Phase rewrite = new Phase("DataRewrite");
+        Phase parallelRewrite = new Phase("DataRewrite -p " + threads);
+        Phase pipelinedRewrite = new Phase("DataRewrite -a " + PipelinedDataRewrite.DEFAULT_DEPTH);
+        // every rewrite mode writes its own output, and each output is compared with its input
+        Phase comparison = new Phase("DataComparison (rewrite output)");
+        Phase parallelComparison = new Phase("DataComparison (parallel rewrite output)");
+        Phase pipelinedComparison = new Phase("DataComparison (pipelined rewrite output)");
+        Phase extraction = new Phase("FileExtraction");
+        Phase regionInfo = new Phase("GenerateRegionInfo");
+
+        MissingLog missingLog = MissingLog.inMemory();
+
+        for (FileStatus storeFile : storeFiles) {
+            Path input = storeFile.getPath();
+            String outputName = input.getParent().getParent().getName() + "_" + input.getName();
+            Path output = new Path(outputDir, outputName);
+            Path parallelOutput = new Path(outputDir, outputName + ".parallel");
+            Path pipelinedOutput = new Path(outputDir, outputName + ".pipelined");
+
+            long start = System.nanoTime();
+            try {
+                DataRewrite.rewrite(conf, fs, input, output, missingLog);
+                rewrite.bytes += storeFile.getLen();
+            } catch (IOException e) {
+                Log.error("DataRewrite failed for", input, e);
+                rewrite.failures += 1;
+            }
+            rewrite.nanos += System.nanoTime() - start;
+            rewrite.files += 1;
+
+            start = System.nanoTime();
+            try {
+                ParallelDataRewrite.rewrite(conf, fs, input, parallelOutput, missingLog, threads);
+                parallelRewrite.bytes += storeFile.getLen();
+            } catch (IOException e) {
+                Log.error("parallel DataRewrite failed for", input, e);
+                parallelRewrite.failures += 1;
+            }
+            parallelRewrite.nanos += System.nanoTime() - start;
+            parallelRewrite.files += 1;
+
+            start = System.nanoTime();
+            try {
+                PipelinedDataRewrite.rewrite(conf, fs, input, pipelinedOutput, missingLog, PipelinedDataRewrite.DEFAULT_DEPTH);
+                pipelinedRewrite.bytes += storeFile.getLen();
+            } catch (IOException e) {
+                Log.error("pipelined DataRewrite failed for", input, e);
+                pipelinedRewrite.failures += 1;
+            }
+            pipelinedRewrite.nanos += System.nanoTime() - start;
+            pipelinedRewrite.files += 1;
+
+            compare(conf, (FaultInjectingFileSystem) fs, storeFile, output, threads, comparison);
+            compare(conf, (FaultInjectingFileSystem) fs, storeFile, parallelOutput, threads, parallelComparison);
+            compare(conf, (FaultInjectingFileSystem) fs, storeFile, pipelinedOutput, threads, pipelinedComparison);
+
+            File fileExtractionDir = new File(extractionDir, output.getName());
+            if (!fileExtractionDir.exists() && !fileExtractionDir.mkdirs()) {
+                throw new IOException("failed to create local directory " + fileExtractionDir);
+            }
+
+            start = System.nanoTime();
+            try {
+                Utils.Index index = Utils.readHFileIndex(conf, input);
+                BlockAvailabilityMap availability = BlockAvailabilityMap.build(conf, fs, input);
+                FileExtraction.extract(fs, input, index, availability, FileExtraction.matchAll(index), fileExtractionDir, threads);
+                extraction.bytes += storeFile.getLen();
+            } catch (IOException e) {
+                Log.error("FileExtraction failed for", input, e);
+                extraction.failures += 1;
+            }
+            extraction.nanos += System.nanoTime() - start;
+            extraction.files += 1;
+        }
+
+        GenerateRegionInfo.Options options = new GenerateRegionInfo.Options();
+        options.dontWrite = true;
+
+        for (Path regionDir : regionDirs) {
+            long start = System.nanoTime();
+            try {
+                if (!GenerateRegionInfo.generate(fs, regionDir, options)) {
+                    regionInfo.failures += 1;
+                }
+            } catch (IOException e) {
+                Log.error("GenerateRegionInfo failed for", regionDir, e);
+                regionInfo.failures += 1;
+            }
+            regionInfo.nanos += System.nanoTime() - start;
+            regionInfo.files += 1;
+        }
+
+        Metrics.logSummary();
+
+        log("RESULTS:");
+        log(rewrite);
+        log(parallelRewrite);
+        log(pipelinedRewrite);
+        log(comparison);
+        log(parallelComparison);
+        log(pipelinedComparison);
+        log(extraction);
+        log(regionInfo);
+
+        exit(0);
+    }
+
+    private static void compare(Configuration conf, FaultInjectingFileSystem fs, FileStatus storeFile, Path output, int threads, Phase phase) throws IllegalAccessException, NoSuchFieldException, ClassNotFoundException, InterruptedException {
+        Path input = storeFile.getPath();
+        // the output is read without injected faults, it is a healthy file
+        Path plainOutput = fs.toTarget(output);
+
+        long start = System.nanoTime();
+        try {
+            DataComparison.Report report = DataComparison.compareFiles(conf, input, plainOutput, threads);
+            phase.bytes += storeFile.getLen();
+            if (!report.succeeded()) {
+                Log.error(phase.name, "found differences between", input, "and", output);
+                phase.failures += 1;
+            }
+        } catch (IOException e) {
+            Log.error(phase.name, "failed for", output, e);
+            phase.failures += 1;
+        }
+        phase.nanos += System.nanoTime() - start;
+        phase.files += 1;
+    }
+
+}
@@ -0,0 +1,163 @@
+package com.ambrella;
+
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.client.MetaScanner;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.ambrella.Log.log;
+import static com.ambrella.Utils.exit;
+
+// Recreates .regioninfo using data from META table
+public class RestoreRegionInfo {
+
+    public static void main(String[] args) throws IOException {
+
+        boolean allRegions = false;
+        String saveSnapshot = null;
+        String loadSnapshot = null;
+        List<Path> dirs = new ArrayList<Path>();
+
+        boolean argsValid = true;
+        for (int i = 0; i < args.length && argsValid; ++i) {
+            if (args[i].equals("-a")) {
+                allRegions = true;
+            } else if (args[i].equals("-s") && i + 1 < args.length) {
+                saveSnapshot = args[++i];
+            } else if (args[i].equals("-l") && i + 1 < args.length) {
+                loadSnapshot = args[++i];
+            } else if (args[i].startsWith("-")) {
+                argsValid = false;
+            } else {
+                dirs.add(new Path(args[i]));
+            }
+        }
+
+        if (!argsValid || dirs.isEmpty()) {
+            log("args: REGION... [-a] [-s SNAPSHOT] [-l SNAPSHOT]");
+            log("REGION should be HDFS path of HBase region directory");
+            log("Options:");
+            log("\t -a \t arguments are table directories, restore all of their regions");
+            log("\t -s \t save the scanned META regions to a local SNAPSHOT file");
+            log("\t -l \t use regions from a local SNAPSHOT file instead of scanning META");
+            exit(1);
+        }
+
+        Configuration conf = Config.Hadoop.makeConfig();
+        FileSystem fs = FileSystem.get(conf);
+
+        List<Path> regionDirs = new ArrayList<Path>();
+        for (Path dir : dirs) {
+            if (!fs.exists(dir) || !fs.getFileStatus(dir).isDir()) {
+                log("invalid " + (allRegions ? "table" : "region") + " directory:", dir);
+                exit(1);
+            }
+
+            if (allRegions) {
+                for (FileStatus status : fs.listStatus(dir)) {
+                    if (status.isDir() && !status.getPath().getName().startsWith(".")) {
+                        regionDirs.add(status.getPath());
+                    }
+                }
+            } else {
+                regionDirs.add(dir);
+            }
+        }
+
+        List<HRegionInfo> regions;
+        if (loadSnapshot != null) {
+            regions = loadSnapshot(new File(loadSnapshot));
+            log("loaded", regions.size(), "regions from META snapshot", loadSnapshot);
+        } else {
+            regions = MetaScanner.listAllRegions(conf);
+            log("scanned", regions.size(), "regions from META");
+        }
+
+        if (saveSnapshot != null) {
+            saveSnapshot(regions, new File(saveSnapshot));
+            log("saved META snapshot to", new File(saveSnapshot).getAbsolutePath());
+        }
+
+        Map<String, HRegionInfo> regionsByName = new HashMap<String, HRegionInfo>();
+        for (HRegionInfo region : regions) {
+            regionsByName.put(region.getEncodedName(), region);
+        }
+
+        int restored = 0;
+        for (Path regionDir : regionDirs) {
+            if (restore(fs, regionDir, regionsByName.get(regionDir.getName()))) {
+                restored += 1;
+            }
+        }
+
+        log("restored", restored, "of", regionDirs.size(), "regions");
+
+        fs.close();
+        exit(restored == regionDirs.size() ? 0 : 2);
+    }
+
+    static boolean restore(FileSystem fs, Path regionDir, HRegionInfo region) throws IOException {
+
+        if (region == null) {
+            log("no region with matching name in metadata:", regionDir);
+            return false;
+        }
+
+        log("found region with matching name in metadata:", regionDir.getName());
+        Path regionInfoPath = new Path(regionDir, C.REGION_INFO_FILE_NAME);
+
+        if (fs.exists(regionInfoPath)) {
+            Path backupName = new Path(regionDir, "_old_regioninfo");
+            log("renamed existing .regioninfo to", backupName);
+            fs.rename(regionInfoPath, backupName);
+        }
+
+        FSDataOutputStream stream = fs.create(regionInfoPath);
+        region.write(stream);
+
+        log("wrote .regioninfo content to", regionInfoPath);
+        stream.sync();
+        stream.close();
+
+        return true;
+    }
+
+    static void saveSnapshot(List<HRegionInfo> regions, File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(regions.size());
+            for (HRegionInfo region : regions) {
+                region.write(out);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    static List<HRegionInfo> loadSnapshot(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            int count = in.readInt();
+            List<HRegionInfo> regions = new ArrayList<HRegionInfo>(count);
+            for (int i = 0; i < count; ++i) {
+                HRegionInfo region = new HRegionInfo();
+                region.readFields(in);
+                regions.add(region);
+            }
+            return regions;
+        } finally {
+            in.close();
+        }
+    }
+
+}
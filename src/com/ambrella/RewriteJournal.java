@@ -0,0 +1,237 @@
+package com.ambrella;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.*;
+import java.util.Properties;
+
+import static com.ambrella.Log.log;
+
+// Local checkpoint of a DataRewrite run, kept next to the missing keys log as LOG.journal.
+// Every CHECKPOINT_INTERVAL bytes of output the rewrite syncs the output and the missing keys
+// log, then atomically replaces the journal with the output offset, the next data block, the
+// lost keys count, the log and spool lengths and the known missing ranges. A restarted rewrite of the
+// same input continues from there: it appends to the partial output if its length matches,
+// otherwise copies the journaled prefix of it into a new file and continues writing that one.
+public class RewriteJournal {
+
+    static final long CHECKPOINT_INTERVAL = 256L * 1024 * 1024;
+
+    // 2 added the lost keys spool
+    private static final int VERSION = 2;
+    private static final int PREFIX_COPY_BUFFER_SIZE = 16 * 1024 * 1024;
+
+    static class State {
+        long outputOffset;
+        int nextBlock;
+        int lostKeys;
+        long missingLogOffset;
+        long spoolOffset;
+        // file the output was being written to, the output itself or a copy made on an earlier resume
+        Path partial;
+        IntervalSet missingRanges = new IntervalSet();
+    }
+
+    private final File file;
+    private final FileStatus input;
+    private final Path output;
+
+    private MissingLog missingLog;
+    private Path partial;
+    private long lastCheckpointOffset = 0;
+
+    RewriteJournal(File file, FileStatus input, Path output) {
+        this.file = file;
+        this.input = input;
+        this.output = output;
+    }
+
+    void setMissingLog(MissingLog missingLog) {
+        this.missingLog = missingLog;
+    }
+
+    // Returns the journaled state if it belongs to this input and output and the partial output
+    // still holds everything it describes, null otherwise.
+    State load(FileSystem fs, Utils.Index index) {
+        if (!file.exists()) {
+            return null;
+        }
+
+        Properties properties = new Properties();
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+
+            if (Integer.parseInt(properties.getProperty("version", "0")) != VERSION
+                    || !input.getPath().toString().equals(properties.getProperty("input"))
+                    || input.getLen() != Long.parseLong(properties.getProperty("input.length"))
+                    || input.getModificationTime() != Long.parseLong(properties.getProperty("input.modificationTime"))
+                    || !output.toString().equals(properties.getProperty("output"))) {
+                Log.warn("journal", file, "belongs to another rewrite, ignoring it");
+                return null;
+            }
+
+            State state = new State();
+            state.outputOffset = Long.parseLong(properties.getProperty("output.offset"));
+            state.nextBlock = Integer.parseInt(properties.getProperty("block.next"));
+            state.lostKeys = Integer.parseInt(properties.getProperty("lostKeys"));
+            state.missingLogOffset = Long.parseLong(properties.getProperty("missingLog.offset"));
+            state.spoolOffset = Long.parseLong(properties.getProperty("missingLog.spoolOffset"));
+            state.partial = new Path(properties.getProperty("output.partial"));
+
+            String ranges = properties.getProperty("missingRanges", "");
+            for (String range : ranges.split(",")) {
+                if (!range.isEmpty()) {
+                    int dash = range.indexOf('-');
+                    state.missingRanges.add(Long.parseLong(range.substring(0, dash)), Long.parseLong(range.substring(dash + 1)));
+                }
+            }
+
+            if (state.nextBlock <= 0 || state.nextBlock >= index.getLength() || index.getOffset(state.nextBlock) != state.outputOffset) {
+                Log.warn("journal", file, "does not match the block index of the input, ignoring it");
+                return null;
+            }
+
+            if (!fs.exists(state.partial) || fs.getFileStatus(state.partial).getLen() < state.outputOffset) {
+                Log.warn("partial output", state.partial, "is shorter than the journal offset, ignoring the journal");
+                return null;
+            }
+
+            return state;
+
+        } catch (Exception e) {
+            Log.warn("failed to read journal", file, e);
+            return null;
+        }
+    }
+
+    // Opens the stream the rewrite writes to, positioned at the journaled offset when resuming
+    FSDataOutputStream openOutput(FileSystem fs, State state) throws IOException {
+        if (state == null) {
+            partial = output;
+            lastCheckpointOffset = 0;
+            return fs.create(output);
+        }
+
+        lastCheckpointOffset = state.outputOffset;
+
+        if (fs.getFileStatus(state.partial).getLen() == state.outputOffset) {
+            try {
+                FSDataOutputStream stream = fs.append(state.partial);
+                if (stream.getPos() == state.outputOffset) {
+                    log("appending to partial output", state.partial, "at offset", state.outputOffset);
+                    partial = state.partial;
+                    return stream;
+                }
+                stream.close();
+            } catch (IOException e) {
+                log("can not append to partial output", state.partial + ":", e.getMessage());
+            }
+        }
+
+        partial = new Path(output.getParent(), output.getName() + ".resume." + System.currentTimeMillis());
+        log("copying", Utils.formatFileSize(state.outputOffset), "written before the restart from", state.partial, "to", partial);
+
+        FSDataOutputStream stream = fs.create(partial);
+        FSDataInputStream in = fs.open(state.partial);
+        try {
+            byte[] buffer = new byte[(int) Math.min(PREFIX_COPY_BUFFER_SIZE, state.outputOffset)];
+            for (long position = 0; position < state.outputOffset; ) {
+                int length = (int) Math.min(buffer.length, state.outputOffset - position);
+                in.readFully(position, buffer, 0, length);
+                stream.write(buffer, 0, length);
+                position += length;
+            }
+        } finally {
+            in.close();
+        }
+
+        if (!state.partial.equals(output)) {
+            fs.delete(state.partial, false);
+        }
+
+        return stream;
+    }
+
+    // Moves the finished output into place after its stream is closed
+    void finishOutput(FileSystem fs) throws IOException {
+        if (partial != null && !partial.equals(output)) {
+            fs.delete(output, false);
+            if (!fs.rename(partial, output)) {
+                throw new IOException("failed to rename " + partial + " to " + output);
+            }
+        }
+    }
+
+    boolean isDue(long outputOffset) {
+        return outputOffset - lastCheckpointOffset >= CHECKPOINT_INTERVAL;
+    }
+
+    // Everything before nextBlock has been written to outputStream
+    void checkpoint(FSDataOutputStream outputStream, int nextBlock, int lostKeys, IntervalSet missingRanges) throws IOException {
+        outputStream.sync();
+        long outputOffset = outputStream.getPos();
+
+        long missingLogOffset = 0;
+        long spoolOffset = 0;
+        if (missingLog != null) {
+            missingLog.sync();
+            missingLogOffset = missingLog.getTextOffset();
+            spoolOffset = missingLog.getSpoolOffset();
+        }
+
+        StringBuilder ranges = new StringBuilder();
+        for (int i = 0; i < missingRanges.size(); ++i) {
+            if (i > 0) {
+                ranges.append(',');
+            }
+            ranges.append(missingRanges.getStart(i)).append('-').append(missingRanges.getEnd(i));
+        }
+
+        Properties properties = new Properties();
+        properties.setProperty("version", Integer.toString(VERSION));
+        properties.setProperty("input", input.getPath().toString());
+        properties.setProperty("input.length", Long.toString(input.getLen()));
+        properties.setProperty("input.modificationTime", Long.toString(input.getModificationTime()));
+        properties.setProperty("output", output.toString());
+        properties.setProperty("output.partial", partial.toString());
+        properties.setProperty("output.offset", Long.toString(outputOffset));
+        properties.setProperty("block.next", Integer.toString(nextBlock));
+        properties.setProperty("lostKeys", Integer.toString(lostKeys));
+        properties.setProperty("missingLog.offset", Long.toString(missingLogOffset));
+        properties.setProperty("missingLog.spoolOffset", Long.toString(spoolOffset));
+        properties.setProperty("missingRanges", ranges.toString());
+
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            properties.store(out, "DataRewrite checkpoint");
+            out.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(file)) {
+            throw new IOException("failed to replace journal " + file);
+        }
+
+        lastCheckpointOffset = outputOffset;
+        log("checkpoint at block", nextBlock, "output offset", outputOffset);
+    }
+
+    void delete() {
+        if (file.exists() && !file.delete()) {
+            Log.warn("failed to delete journal", file);
+        }
+    }
+
+}
@@ -0,0 +1,173 @@
+package com.ambrella;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.io.hfile.Compression;
+import org.apache.hadoop.hbase.io.hfile.HFile;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static com.ambrella.Log.log;
+import static com.ambrella.Utils.exit;
+import static com.ambrella.Utils.formatFileSize;
+
+// Writes a table of uncompressed HFile v1 store files in the layout the tools expect:
+// TABLE/REGION/att/STOREFILE, one att:data cell per row named file-NNNNNNNN. Every region owns
+// a contiguous range of rows, the store files of a region interleave its rows. The same seed
+// always produces the same rows, values, timestamps and file names.
+public class SyntheticHFileGenerator {
+
+    static final byte[] FAMILY = Bytes.toBytes("att");
+    static final byte[] QUALIFIER = Bytes.toBytes("data");
+
+    // the cell of row N has timestamp BASE_TIMESTAMP + N
+    static final long BASE_TIMESTAMP = 1300000000000L;
+
+    static class Layout {
+        int regions = 4;
+        int filesPerRegion = 2;
+        int cellsPerFile = 1000;
+        int minCellSize = 16 * 1024;
+        int maxCellSize = 16 * 1024;
+        int blockSize = HFile.DEFAULT_BLOCKSIZE;
+        long seed = 1;
+
+        long approximateSize() {
+            return (long) regions * filesPerRegion * cellsPerFile * (minCellSize + maxCellSize) / 2;
+        }
+
+        @Override
+        public String toString() {
+            return regions + " regions x " + filesPerRegion + " files x " + cellsPerFile + " cells of " +
+                    formatFileSize(minCellSize) + (maxCellSize != minCellSize ? "-" + formatFileSize(maxCellSize) : "") +
+                    ", block size " + formatFileSize(blockSize) + ", seed " + seed;
+        }
+    }
+
+    // Parses generator options starting at args[i], returns the index of the first unknown argument
+    static int parseLayout(String[] args, int i, Layout layout) {
+        for (; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            if (args[i].equals("-r")) {
+                layout.regions = Integer.parseInt(value);
+            } else if (args[i].equals("-f")) {
+                layout.filesPerRegion = Integer.parseInt(value);
+            } else if (args[i].equals("-n")) {
+                layout.cellsPerFile = Integer.parseInt(value);
+            } else if (args[i].equals("-c")) {
+                String[] sizes = value.split(",");
+                layout.minCellSize = Integer.parseInt(sizes[0]);
+                layout.maxCellSize = Integer.parseInt(sizes[sizes.length - 1]);
+            } else if (args[i].equals("-b")) {
+                layout.blockSize = Integer.parseInt(value);
+            } else if (args[i].equals("-s")) {
+                layout.seed = Long.parseLong(value);
+            } else {
+                return i;
+            }
+        }
+        return i;
+    }
+
+    static void logLayoutUsage() {
+        log("\t -r \t number of regions (default 4)");
+        log("\t -f \t store files per region (default 2)");
+        log("\t -n \t cells per store file (default 1000)");
+        log("\t -c \t cell value size in bytes, or MIN,MAX for random sizes (default 16384)");
+        log("\t -b \t HFile block size in bytes (default " + HFile.DEFAULT_BLOCKSIZE + ")");
+        log("\t -s \t random seed (default 1)");
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        Layout layout = new Layout();
+        boolean argsValid = args.length >= 1 && (args.length - 1) % 2 == 0;
+
+        if (argsValid) {
+            try {
+                argsValid = parseLayout(args, 1, layout) == args.length;
+            } catch (NumberFormatException e) {
+                argsValid = false;
+            }
+        }
+
+        if (!argsValid) {
+            Log.includeTimestamp = false;
+            log("args: TABLE_DIR [-r REGIONS] [-f FILES] [-n CELLS] [-c CELL_SIZE] [-b BLOCK_SIZE] [-s SEED]");
+            log("Writes a synthetic table of HFile v1 store files to TABLE_DIR, which can be a local or HDFS path.");
+            log("Options:");
+            logLayoutUsage();
+            exit(1);
+        }
+
+        Path tableDir = new Path(args[0]);
+        FileSystem fs = tableDir.getFileSystem(Config.Hadoop.makeConfig());
+
+        if (fs.exists(tableDir)) {
+            Log.error("table directory already exists:", tableDir);
+            exit(1);
+        }
+
+        List<Path> files = generateTable(fs, tableDir, layout);
+
+        log("done, wrote", files.size(), "store files to", tableDir);
+        exit(0);
+    }
+
+    static List<Path> generateTable(FileSystem fs, Path tableDir, Layout layout) throws IOException {
+        log("generating table", tableDir, "with", layout, "(about " + formatFileSize(layout.approximateSize()) + ")");
+
+        Random random = new Random(layout.seed);
+        List<Path> files = new ArrayList<Path>();
+        int rowsPerRegion = layout.filesPerRegion * layout.cellsPerFile;
+
+        for (int region = 0; region < layout.regions; ++region) {
+            Path familyDir = new Path(new Path(tableDir, String.format("%016x%016x", random.nextLong(), random.nextLong())), "att");
+
+            for (int file = 0; file < layout.filesPerRegion; ++file) {
+                Path storeFile = new Path(familyDir, Long.toString(random.nextLong() & Long.MAX_VALUE));
+                writeStoreFile(fs, storeFile, layout, region * rowsPerRegion + file, layout.filesPerRegion, layout.cellsPerFile, new Random(random.nextLong()));
+                files.add(storeFile);
+            }
+        }
+
+        return files;
+    }
+
+    // Writes rows firstRow, firstRow + rowStep, ... with one cell each
+    static void writeStoreFile(FileSystem fs, Path file, Layout layout, int firstRow, int rowStep, int cells, Random random) throws IOException {
+        log("writing", cells, "cells to", file);
+
+        byte[] value = new byte[layout.maxCellSize];
+
+        HFile.Writer writer = new HFile.Writer(fs, file, layout.blockSize, Compression.Algorithm.NONE, new KeyValue.KeyComparator());
+        try {
+            for (int i = 0; i < cells; ++i) {
+                int row = firstRow + i * rowStep;
+                int size = layout.minCellSize + (layout.maxCellSize > layout.minCellSize ? random.nextInt(layout.maxCellSize - layout.minCellSize + 1) : 0);
+                random.nextBytes(value);
+
+                writer.append(new KeyValue(Bytes.toBytes(String.format("file-%08d", row)), FAMILY, QUALIFIER,
+                        BASE_TIMESTAMP + row, size == value.length ? value : Arrays.copyOf(value, size)));
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    // Convenience for tools that need a single store file
+    static void writeStoreFile(FileSystem fs, Path file, int blockSize, int cellSize, int cells, long seed) throws IOException {
+        Layout layout = new Layout();
+        layout.blockSize = blockSize;
+        layout.minCellSize = cellSize;
+        layout.maxCellSize = cellSize;
+        writeStoreFile(fs, file, layout, 0, 1, cells, new Random(seed));
+    }
+
+}
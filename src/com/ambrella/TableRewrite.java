@@ -0,0 +1,238 @@
+package com.ambrella;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.ambrella.Log.log;
+import static com.ambrella.Utils.exit;
+import static com.ambrella.Utils.formatFileSize;
+
+// Finds corrupted store files of a table and rewrites all of them in one JVM, largest first.
+// Produces the same files as the old rewrite_table script: TABLE/corrupted_regions,
+// TABLE/rewrite_move_ops.sh and one missing keys log per rewritten file. The scan result is
+// kept as TABLE/corruption_manifest and can be passed back with -m to skip the scan. The lost
+// row ranges of all rewritten files are merged into TABLE/lost_keys.lks for LostKeyStore query.
+// Files that failed to rewrite have no complete list of lost rows, they are listed in
+// TABLE/failed_files instead.
+public class TableRewrite {
+
+    static final String HBASE_ROOT = "/hbase";
+
+    private static int parseCount(String[] args, int i) {
+        if (i >= args.length) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(args[i]);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+
+        int threads = 4;
+        int readers = 0;
+        String manifest = null;
+        boolean argsValid = args.length >= 1;
+
+        for (int i = 1; i < args.length && argsValid; i += 2) {
+            if (args[i].equals("-t")) {
+                threads = parseCount(args, i + 1);
+                argsValid = threads > 0;
+            } else if (args[i].equals("-p")) {
+                readers = parseCount(args, i + 1);
+                argsValid = readers > 0;
+            } else if (args[i].equals("-m") && i + 1 < args.length) {
+                manifest = args[i + 1];
+            } else {
+                argsValid = false;
+            }
+        }
+
+        if (!argsValid) {
+            Log.includeTimestamp = false;
+            log("arguments: TABLE [-t FILES] [-p THREADS] [-m MANIFEST]");
+            log("Rewrites all corrupted store files of the table, writes move operations to TABLE/rewrite_move_ops.sh");
+            log("Options:");
+            log("\t -t \t number of files rewritten at the same time (default 4)");
+            log("\t -p \t read each file in parallel using THREADS readers");
+            log("\t -m \t take the corrupted files from a CorruptionScanner manifest instead of scanning the table");
+            log(Config.IndexCache.USAGE);
+            exit(1);
+        }
+
+        String table = args[0];
+
+        Configuration conf = Config.Hadoop.makeConfig();
+        FileSystem fs = FileSystem.get(conf);
+
+        Path tableDir = new Path(HBASE_ROOT, table);
+
+        if (!fs.exists(tableDir)) {
+            Log.error("table directory does not exist:", tableDir);
+            exit(1);
+        }
+
+        File localDir = new File(table);
+        if (!localDir.exists() && !localDir.mkdirs()) {
+            Log.error("failed to create local directory:", localDir.getAbsolutePath());
+            exit(2);
+        }
+
+        List<CorruptionManifest.Entry> entries;
+        if (manifest != null) {
+            entries = CorruptionManifest.read(new File(manifest));
+            log("read", entries.size(), "corrupted files from manifest", manifest);
+        } else {
+            entries = CorruptionScanner.scan(conf, fs, tableDir, CorruptionScanner.DEFAULT_THREADS, CorruptionScanner.DEFAULT_RPC_RATE);
+            CorruptionManifest.write(new File(localDir, "corruption_manifest"), entries);
+        }
+
+        List<FileStatus> corrupted = findCorruptedFiles(entries);
+
+        log("found", corrupted.size(), "corrupted store files");
+
+        PrintWriter regions = new PrintWriter(new FileOutputStream(new File(localDir, "corrupted_regions")));
+        for (FileStatus status : corrupted) {
+            regions.println(status.getPath().toUri().getPath());
+        }
+        regions.close();
+
+        Map<FileStatus, Path> restored = rewriteFiles(conf, fs, table, localDir, corrupted, threads, readers);
+
+        File moveOps = new File(localDir, "rewrite_move_ops.sh");
+        PrintWriter ops = new PrintWriter(new FileOutputStream(moveOps));
+        ops.println("#!/bin/bash -e -x");
+        ops.println();
+        for (FileStatus status : corrupted) {
+            Path output = restored.get(status);
+            if (output == null) {
+                continue;
+            }
+            String region = status.getPath().toUri().getPath();
+            String original = new Path(output.getParent(), baseName(status.getPath()) + ".ORIGINAL").toString();
+            ops.println("hadoop fs -mv \"" + region + "\" \"" + original + "\"");
+            ops.println("hadoop fs -mv \"" + output + "\" \"" + region + "\"");
+        }
+        ops.close();
+
+        if (!moveOps.setExecutable(true)) {
+            Log.warn("failed to make move operations script executable:", moveOps);
+        }
+
+        // the stores of failed files hold only the ranges found before the failure
+        List<File> stores = new ArrayList<File>();
+        File failedFiles = new File(localDir, "failed_files");
+        PrintWriter failed = new PrintWriter(new FileOutputStream(failedFiles));
+        for (FileStatus status : corrupted) {
+            if (!restored.containsKey(status)) {
+                Log.warn("not rewritten, lost rows unknown:", status.getPath());
+                failed.println(status.getPath().toUri().getPath());
+                continue;
+            }
+            File store = MissingLog.storeFile(new File(localDir, baseName(status.getPath()) + ".missing.log"));
+            if (store.exists()) {
+                stores.add(store);
+            }
+        }
+        failed.close();
+        File lostKeys = new File(localDir, "lost_keys" + LostKeyStore.SUFFIX);
+        long lostRanges = LostKeyStore.merge(stores, lostKeys);
+        log("merged", lostRanges, "lost row ranges of", stores.size(), "files into", lostKeys.getAbsolutePath());
+
+        log("rewritten", restored.size(), "of", corrupted.size(), "files, move operations written to", moveOps.getAbsolutePath());
+        if (restored.size() < corrupted.size()) {
+            log(corrupted.size() - restored.size(), "files failed to rewrite, listed in", failedFiles.getAbsolutePath());
+        }
+        Metrics.logSummary();
+        log("Finished.");
+
+        exit(restored.size() == corrupted.size() ? 0 : 2);
+    }
+
+    // REGION_STOREFILE, the same name the rewrite_table script used
+    static String baseName(Path storeFile) {
+        return storeFile.getParent().getParent().getName() + "_" + storeFile.getName();
+    }
+
+    static List<FileStatus> findCorruptedFiles(List<CorruptionManifest.Entry> entries) {
+
+        List<FileStatus> corrupted = new ArrayList<FileStatus>();
+
+        for (CorruptionManifest.Entry entry : entries) {
+            log("corrupted store file:", entry.path, formatFileSize(entry.length));
+            corrupted.add(entry.toFileStatus());
+        }
+
+        // largest files first, so the longest rewrites do not end up running alone at the end
+        Collections.sort(corrupted, new Comparator<FileStatus>() {
+            public int compare(FileStatus a, FileStatus b) {
+                return a.getLen() == b.getLen() ? 0 : (a.getLen() > b.getLen() ? -1 : 1);
+            }
+        });
+
+        return corrupted;
+    }
+
+    static Map<FileStatus, Path> rewriteFiles(final Configuration conf, final FileSystem fs, String table, final File localDir, final List<FileStatus> files, int threads, final int readers) throws InterruptedException {
+
+        final Map<FileStatus, Path> restored = Collections.synchronizedMap(new HashMap<FileStatus, Path>());
+        final Path conversionDir = new Path("/tmp/conversion_" + table);
+        final AtomicInteger started = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        for (final FileStatus status : files) {
+            executor.submit(new Runnable() {
+                public void run() {
+                    Path file = status.getPath();
+                    String baseName = baseName(file);
+                    Path output = new Path(conversionDir, baseName + ".RESTORED");
+                    File missingLogFile = new File(localDir, baseName + ".missing.log");
+
+                    log("processing file: " + file + " (" + started.incrementAndGet() + " of " + files.size() + ")");
+
+                    try {
+                        MissingLog missingLog = MissingLog.create(missingLogFile);
+                        missingLog.readLastKey(fs, file);
+                        DataRewrite.Result result;
+                        try {
+                            if (readers > 0) {
+                                result = ParallelDataRewrite.rewrite(conf, fs, file, output, missingLog, readers);
+                            } else {
+                                result = DataRewrite.rewrite(conf, fs, file, output, missingLog);
+                            }
+                        } finally {
+                            missingLog.finish();
+                        }
+
+                        log("finished file:", file, "lost keys:", result.lostKeysCount, "of", result.blockCount);
+                        restored.put(status, output);
+
+                    } catch (Exception e) {
+                        Log.error("failed to rewrite file:", file, e);
+                    }
+                }
+            });
+        }
+
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+        return restored;
+    }
+
+}
@@ -1,22 +1,18 @@
 package com.ambrella;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hbase.io.HbaseMapWritable;
-import org.apache.hadoop.hbase.io.hfile.HFile;
-import org.apache.hadoop.hbase.regionserver.StoreFile;
 import org.apache.hadoop.hbase.util.Bytes;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.lang.reflect.Field;
 import java.text.DecimalFormat;
 import java.util.Arrays;
 
-import static com.ambrella.Log.log;
-
 public class Utils {
 
 
@@ -63,38 +59,20 @@ public class Utils {
 
     }
 
-    public static Index readHFileIndex(Configuration conf, Path filepath) throws IOException, IllegalAccessException, ClassNotFoundException, NoSuchFieldException {
+    // Never returns null, a file whose index can not be read throws IOException
+    public static Index readHFileIndex(Configuration conf, Path filepath) throws IOException {
         FileSystem fs = filepath.getFileSystem(conf);
-        HFile.Reader reader = new HFile.Reader(fs, filepath, StoreFile.getBlockCache(conf), false);
-        reader.loadFileInfo();
-
-        Field blockIndexField = null;
+        FileStatus status = fs.getFileStatus(filepath);
 
-        try {
-            blockIndexField = reader.getClass().getDeclaredField("blockIndex");
-        } catch (NoSuchFieldException e) {
-            log("Cloud not get HFile$BlockIndex class: " + e.getMessage());
-            return null;
+        Index index = IndexCache.load(status);
+        if (index != null) {
+            return index;
         }
 
-        blockIndexField.setAccessible(true);
-        Object blockIndex = blockIndexField.get(reader);
-
-        Class<?> c = Class.forName(HFile.class.getName() + "$BlockIndex");
-
-        Field bkeys = c.getDeclaredField("blockKeys");
-        bkeys.setAccessible(true);
-        byte[][] keys = (byte[][]) bkeys.get(blockIndex);
-
-        Field boffsets = c.getDeclaredField("blockOffsets");
-        boffsets.setAccessible(true);
-        long[] offsets = (long[]) boffsets.get(blockIndex);
-
-        Field bsizes = c.getDeclaredField("blockDataSizes");
-        bsizes.setAccessible(true);
-        int[] sizes = (int[]) bsizes.get(blockIndex);
+        index = HFileTail.read(fs, filepath).dataIndex;
+        IndexCache.store(status, index);
 
-        return new Index(keys, offsets, sizes);
+        return index;
     }
 
 